@@ -0,0 +1,155 @@
+/*
+ Copyright (C) 2013 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.phage.level;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+import static wjd.phage.level.Concentration.CONCENTRATION_MAX;
+import static wjd.phage.level.Concentration.CONCENTRATION_MIN;
+
+/**
+ * A DiffusionKernel whose loops are written with the incubating Vector API,
+ * so as to process as many Tiles per instruction as the hardware allows.
+ * <p>
+ * Operations are done in the same order as in the scalar kernel and never
+ * fused, so results are identical to the last bit. This class lives in its
+ * own source folder as it needs Java 16 or later and 
+ * --add-modules jdk.incubator.vector: without it DiffusionKernel.create just
+ * falls back to the scalar kernel.
+ *
+ * @author wdyce
+ * @since Feb 19, 2013
+ */
+final class VectorDiffusionKernel extends DiffusionKernel
+{
+  /* CONSTANTS */
+  private static final VectorSpecies<Float> SPECIES 
+    = FloatVector.SPECIES_PREFERRED;
+  
+  /* METHODS */
+  
+  // constructors
+  
+  public VectorDiffusionKernel()
+  {
+    // scalar loops would do the work more slowly than the plain kernel 
+    if(SPECIES.length() < 2)
+      throw new UnsupportedOperationException("no SIMD lanes available");
+  }
+  
+  // accessors
+  
+  @Override
+  boolean isVectorised()
+  {
+    return true;
+  }
+  
+  /* OVERRIDES -- DIFFUSIONKERNEL */
+  
+  @Override
+  boolean shareRow(float[] source, float[] share, int l, 
+                   float[] out, int o, int n)
+  {
+    boolean moving = false;
+    int i = 0;
+    for(int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length())
+    {
+      FloatVector s = FloatVector.fromArray(SPECIES, source, l + i);
+      FloatVector given = s.mul(FloatVector.fromArray(SPECIES, share, l + i))
+        .blend(0.0f, s.lt(CONCENTRATION_MIN));
+      given.intoArray(out, o + i);
+      moving |= given.compare(VectorOperators.NE, 0.0f).anyTrue();
+    }
+    
+    // the remainder of the row, if it isn't a multiple of the vector length
+    return super.shareRow(source, share, l + i, out, o + i, n - i) | moving;
+  }
+  
+  @Override
+  void sumRows(float[] shares, float[] row_sums)
+  {
+    int bound = SPECIES.loopBound(TileChunk.SIZE);
+    for(int pr = 0; pr < PADDED; pr++)
+    {
+      int s = pr * PADDED, h = pr * TileChunk.SIZE, col = 0;
+      for(; col < bound; col += SPECIES.length())
+        FloatVector.fromArray(SPECIES, shares, s + col)
+          .add(FloatVector.fromArray(SPECIES, shares, s + col + 1))
+          .add(FloatVector.fromArray(SPECIES, shares, s + col + 2))
+          .intoArray(row_sums, h + col);
+      for(; col < TileChunk.SIZE; col++)
+        row_sums[h + col] = shares[s + col] + shares[s + col + 1] 
+                            + shares[s + col + 2];
+    }
+  }
+  
+  @Override
+  int combine(float[] source, float[] keep, float[] open, 
+              float[] row_sums, float[] destination)
+  {
+    // a chunk's area is a power of 2, so a whole number of vectors
+    boolean any = false, crowded = false;
+    for(int l = 0; l < TileChunk.AREA; l += SPECIES.length())
+    {
+      FloatVector received 
+        = FloatVector.fromArray(SPECIES, row_sums, l)
+          .add(FloatVector.fromArray(SPECIES, row_sums, l + TileChunk.SIZE))
+          .add(FloatVector.fromArray(SPECIES, row_sums, l + 2*TileChunk.SIZE))
+          .mul(FloatVector.fromArray(SPECIES, open, l));
+      FloatVector s = FloatVector.fromArray(SPECIES, source, l);
+      FloatVector kept = s.mul(FloatVector.fromArray(SPECIES, keep, l))
+        .blend(s, s.lt(CONCENTRATION_MIN));
+      FloatVector result = kept.add(received);
+      result.intoArray(destination, l);
+      any |= result.compare(VectorOperators.NE, 0.0f).anyTrue();
+      crowded |= s.add(received).compare(VectorOperators.GT, 
+                                         CONCENTRATION_MAX).anyTrue();
+    }
+    return (any ? HOLDING : 0) | (crowded ? CROWDED : 0);
+  }
+  
+  @Override
+  boolean decay(float[] plane, float fraction)
+  {
+    boolean any = false;
+    for(int l = 0; l < TileChunk.AREA; l += SPECIES.length())
+    {
+      FloatVector p = FloatVector.fromArray(SPECIES, plane, l);
+      p = p.sub(p.mul(fraction));
+      VectorMask<Float> gone = p.lt(CONCENTRATION_MIN);
+      p.blend(0.0f, gone).intoArray(plane, l);
+      any |= !gone.allTrue();
+    }
+    return any;
+  }
+  
+  @Override
+  void react(float[] plane, float[] other, float rate)
+  {
+    for(int l = 0; l < TileChunk.AREA; l += SPECIES.length())
+    {
+      FloatVector p = FloatVector.fromArray(SPECIES, plane, l),
+                  o = FloatVector.fromArray(SPECIES, other, l),
+                  neutralised = p.mul(rate).mul(o);
+      p.sub(neutralised).intoArray(plane, l);
+      o.sub(neutralised).intoArray(other, l);
+    }
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ Copyright (C) 2013 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.phage;
+
+import java.io.File;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import wjd.amb.control.EUpdateResult;
+import wjd.amb.control.IDynamic;
+import wjd.phage.level.FogOfWar;
+import wjd.phage.level.TileGrid;
+import wjd.phage.play.PlayController;
+import wjd.util.Timer;
+
+/**
+ * Runs the simulation with no display: a level is loaded, advanced at a fixed
+ * time-step exactly as PlayController does, and the number of ticks per 
+ * second is reported. No rendering resources are loaded, Tiles only ask for 
+ * theirs the first time they are drawn.
+ * 
+ * usage: Headless level.lvl [ticks] [t_delta]
+ *
+ * @author wdyce
+ * @since Feb 13, 2013
+ */
+public class Headless implements IDynamic
+{
+  /* CONSTANTS */
+  public static final int DEFAULT_TICKS = 10000;
+  public static final int DEFAULT_T_DELTA = 16; // ms
+  
+  /* ATTRIBUTES */
+  private final TileGrid grid;
+  private final FogOfWar fog;
+  private final Timer fog_timer = new Timer(PlayController.FOG_PERIOD);
+  
+  /* METHODS */
+  
+  // constructors
+  
+  public Headless(TileGrid grid)
+  {
+    this.grid = grid;
+    this.fog = new FogOfWar(grid);
+    fog.recalculate();
+  }
+  
+  /* CLASS NAMESPACE FUNCTIONS */
+  
+  public static void main(String args[])
+  {
+    if(args.length < 1)
+    {
+      System.err.println("usage: Headless level.lvl [ticks] [t_delta]");
+      System.exit(1);
+    }
+    System.setProperty("java.awt.headless", "true");
+    
+    int n_ticks = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_TICKS,
+        t_delta = (args.length > 2) ? Integer.parseInt(args[2]) : DEFAULT_T_DELTA;
+    
+    try
+    {
+      TileGrid grid = TileGrid.load(new File(args[0]));
+      System.out.println("loaded " + args[0] + ": " + grid.getWidth() + "x" 
+                          + grid.getHeight() + " tiles");
+      
+      long t_start = System.nanoTime();
+      run(grid, n_ticks, t_delta);
+      double seconds = (System.nanoTime() - t_start) * 1e-9;
+      
+      System.out.println(n_ticks + " ticks of " + t_delta + "ms in " 
+                          + String.format("%.3f", seconds) + "s: " 
+                          + String.format("%.1f", n_ticks / seconds) 
+                          + " ticks per second");
+      
+      // identical runs give identical checksums
+      System.out.println("checksum " + Long.toHexString(grid.checksum()));
+    }
+    catch (Exception ex)
+    {
+      Logger.getLogger(Headless.class.getName()).log(Level.SEVERE, null, ex);
+      System.exit(1);
+    }
+  }
+  
+  /**
+   * Advance the simulation of a level as PlayController does, without
+   * rendering anything.
+   * 
+   * @param grid the level to simulate.
+   * @param n_ticks how many times to update the level.
+   * @param t_delta how many milliseconds each update lasts.
+   */
+  public static void run(TileGrid grid, int n_ticks, int t_delta)
+  {
+    Headless simulation = new Headless(grid);
+    for(int tick = 0; tick < n_ticks; tick++)
+      simulation.update(t_delta);
+  }
+  
+  /* IMPLEMENTS -- IDYNAMIC */
+  
+  @Override
+  public EUpdateResult update(int t_delta)
+  {
+    // refresh fog-of-war periodically
+    if(fog_timer.update(t_delta) == EUpdateResult.FINISHED)
+      fog.recalculate();
+
+    // update the grid's units and concentrations
+    grid.update(t_delta);
+    
+    // always continue
+    return EUpdateResult.CONTINUE;
+  }
+}
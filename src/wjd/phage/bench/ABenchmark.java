@@ -0,0 +1,249 @@
+/*
+ Copyright (C) 2013 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.phage.bench;
+
+import java.util.LinkedList;
+import wjd.phage.Headless;
+import wjd.phage.level.Concentration;
+import wjd.phage.level.FogOfWar;
+import wjd.phage.level.Tile;
+import wjd.phage.level.TileGrid;
+import wjd.phage.pathing.HierarchicalPlanner;
+import wjd.phage.pathing.PathSearch;
+
+/**
+ * A simulation hot path to be measured: setUp is called once per fixture,
+ * outside of the measurement, then run is called repeatedly.
+ *
+ * @author wdyce
+ * @since Feb 14, 2013
+ */
+public abstract class ABenchmark
+{
+  /* ATTRIBUTES */
+  public final String name;
+  // results are accumulated here so that the work can't be optimised away
+  protected long sink = 0;
+  
+  /* METHODS */
+  
+  // constructors
+  
+  protected ABenchmark(String name)
+  {
+    this.name = name;
+  }
+  
+  /* INTERFACE */
+  
+  public abstract void setUp(TileGrid grid);
+  
+  public abstract void run();
+  
+  /* IMPLEMENTATIONS */
+  
+  /** Visit every Tile of the grid through its iterator. */
+  public static final ABenchmark ITERATE = new ABenchmark("iterate")
+  {
+    private TileGrid grid;
+    
+    @Override
+    public void setUp(TileGrid grid)
+    {
+      this.grid = grid;
+    }
+    
+    @Override
+    public void run()
+    {
+      for(Tile t : grid)
+        if(t.isPathable())
+          sink++;
+    }
+  };
+  
+  /** Visit the neighbours of every Tile of the grid. */
+  public static final ABenchmark NEIGHBOURS = new ABenchmark("neighbours")
+  {
+    private TileGrid grid;
+    
+    @Override
+    public void setUp(TileGrid grid)
+    {
+      this.grid = grid;
+    }
+    
+    @Override
+    public void run()
+    {
+      int n_tiles = grid.getWidth() * grid.getHeight();
+      for(int i = 0; i < n_tiles; i++)
+        for(int offset : grid.getNeighbourOffsets(i, true))
+          if(grid.getTile(i + offset).isPathable())
+            sink++;
+    }
+  };
+  
+  /** Search for a path from one corner of the grid to the other. */
+  public static final ABenchmark PATH_SEARCH = new ABenchmark("path search")
+  {
+    private Tile start, end;
+    
+    @Override
+    public void setUp(TileGrid grid)
+    {
+      start = grid.gridToTile(0, 0);
+      end = grid.gridToTile(grid.getWidth() - 1, grid.getHeight() - 1);
+    }
+    
+    @Override
+    public void run()
+    {
+      sink += new PathSearch(start, end).hashCode();
+    }
+  };
+  
+  /** The same search, with Jump Point Search. */
+  public static final ABenchmark JUMP_POINT_SEARCH 
+    = new ABenchmark("jump point search")
+  {
+    private Tile start, end;
+    
+    @Override
+    public void setUp(TileGrid grid)
+    {
+      start = grid.gridToTile(0, 0);
+      end = grid.gridToTile(grid.getWidth() - 1, grid.getHeight() - 1);
+    }
+    
+    @Override
+    public void run()
+    {
+      sink += new PathSearch(start, end, PathSearch.EStrategy.JUMP_POINT)
+                .hashCode();
+    }
+  };
+  
+  /** 
+   * Plan the same path across the clusters, and refine its first leg: the 
+   * clusters are built once, by the first plan.
+   */
+  public static final ABenchmark HIERARCHICAL_PLAN 
+    = new ABenchmark("hierarchical plan")
+  {
+    private Tile start, end;
+    private LinkedList<Tile> path = new LinkedList<Tile>();
+    
+    @Override
+    public void setUp(TileGrid grid)
+    {
+      start = grid.gridToTile(0, 0);
+      end = grid.gridToTile(grid.getWidth() - 1, grid.getHeight() - 1);
+      HierarchicalPlanner.get(grid).plan(start, end);
+    }
+    
+    @Override
+    public void run()
+    {
+      HierarchicalPlanner.get(start.grid).plan(start, end)
+        .writeNextLeg(start, path);
+      sink += path.size();
+    }
+  };
+  
+  /** Write out the result of a path search. */
+  public static final ABenchmark WRITE_PATH = new ABenchmark("write path")
+  {
+    private PathSearch search;
+    private LinkedList<Tile> path = new LinkedList<Tile>();
+    
+    @Override
+    public void setUp(TileGrid grid)
+    {
+      search = new PathSearch(grid.gridToTile(0, 0), 
+          grid.gridToTile(grid.getWidth() - 1, grid.getHeight() - 1));
+    }
+    
+    @Override
+    public void run()
+    {
+      search.writePath(path);
+      sink += path.size();
+    }
+  };
+  
+  /** Recalculate the fog-of-war from scratch. */
+  public static final ABenchmark FOG = new ABenchmark("fog of war")
+  {
+    private FogOfWar fog;
+    
+    @Override
+    public void setUp(TileGrid grid)
+    {
+      fog = new FogOfWar(grid);
+    }
+    
+    @Override
+    public void run()
+    {
+      fog.recalculate();
+    }
+  };
+  
+  /** Update the grid over one dispersion period, so that concentrations are
+   * dispersed every time. */
+  public static final ABenchmark DISPERSE = new ABenchmark("disperse")
+  {
+    private TileGrid grid;
+    
+    @Override
+    public void setUp(TileGrid grid)
+    {
+      this.grid = grid;
+    }
+    
+    @Override
+    public void run()
+    {
+      grid.update(Concentration.DISPERSION_PERIOD);
+    }
+  };
+  
+  /** A full tick of play, as run by PlayController. */
+  public static final ABenchmark TICK = new ABenchmark("tick")
+  {
+    private Headless simulation;
+    
+    @Override
+    public void setUp(TileGrid grid)
+    {
+      simulation = new Headless(grid);
+    }
+    
+    @Override
+    public void run()
+    {
+      simulation.update(Headless.DEFAULT_T_DELTA);
+    }
+  };
+  
+  public static final ABenchmark[] ALL = 
+  { 
+    ITERATE, NEIGHBOURS, PATH_SEARCH, JUMP_POINT_SEARCH, HIERARCHICAL_PLAN, 
+    WRITE_PATH, FOG, DISPERSE, TICK 
+  };
+}
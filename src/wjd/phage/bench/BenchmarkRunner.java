@@ -0,0 +1,119 @@
+/*
+ Copyright (C) 2013 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.phage.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures each benchmark on each fixture at several sizes, reporting the
+ * throughput and the number of bytes allocated per operation. Each trial is
+ * run on a freshly built fixture and warmed up before being measured.
+ * 
+ * usage: BenchmarkRunner [benchmark-name-filter] [size ...]
+ *
+ * @author wdyce
+ * @since Feb 14, 2013
+ */
+public abstract class BenchmarkRunner 
+{
+  /* CONSTANTS */
+  public static final int[] DEFAULT_SIZES = { 64, 256, 1024 };
+  public static final long WARMUP_NS = 1000000000L;   // 1 second
+  public static final long MEASURE_NS = 3000000000L;  // 3 seconds
+  
+  /* CLASS NAMESPACE FUNCTIONS */
+  
+  public static void main(String args[])
+  {
+    System.setProperty("java.awt.headless", "true");
+    
+    String filter = (args.length > 0) ? args[0] : "";
+    int[] sizes = DEFAULT_SIZES;
+    if(args.length > 1)
+    {
+      sizes = new int[args.length - 1];
+      for(int i = 0; i < sizes.length; i++)
+        sizes[i] = Integer.parseInt(args[i + 1]);
+    }
+    
+    System.out.println(String.format("%-12s %-10s %6s %14s %14s", 
+                        "benchmark", "fixture", "size", "ops/s", "bytes/op"));
+    for(ABenchmark benchmark : ABenchmark.ALL)
+    {
+      if(!benchmark.name.contains(filter))
+        continue;
+      for(EFixture fixture : EFixture.values())
+      for(int size : sizes)
+      {
+        benchmark.setUp(fixture.create(size));
+        
+        // let the JIT compiler do its thing
+        measure(benchmark, WARMUP_NS);
+        
+        long[] result = measure(benchmark, MEASURE_NS);
+        double ops_per_second = result[0] * 1e9 / result[1];
+        String bytes_per_op = (result[2] < 0) ? "n/a" 
+                            : String.valueOf(result[2] / result[0]);
+        System.out.println(String.format("%-12s %-10s %6d %14.1f %14s", 
+                            benchmark.name, fixture.name().toLowerCase(), 
+                            size, ops_per_second, bytes_per_op));
+      }
+    }
+  }
+  
+  /**
+   * Run a benchmark repeatedly for (at least) the specified duration.
+   * 
+   * @return the number of operations performed, the number of nanoseconds
+   * they took and the number of bytes allocated, or -1 if the virtual 
+   * machine can't measure allocations.
+   */
+  public static long[] measure(ABenchmark benchmark, long duration)
+  {
+    long n_ops = 0, t_start = System.nanoTime(), t_end = t_start, 
+         allocated = allocatedBytes();
+    do
+    {
+      benchmark.run();
+      n_ops++;
+      t_end = System.nanoTime();
+    }
+    while(t_end - t_start < duration);
+    
+    if(allocated >= 0)
+      allocated = allocatedBytes() - allocated;
+    return new long[] { n_ops, t_end - t_start, allocated };
+  }
+  
+  /* SUBROUTINES */
+  
+  private static long allocatedBytes()
+  {
+    // the HotSpot extension can tell how much memory a thread has allocated
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if(threads instanceof com.sun.management.ThreadMXBean)
+    {
+      com.sun.management.ThreadMXBean hotspot 
+        = (com.sun.management.ThreadMXBean)threads;
+      if(hotspot.isThreadAllocatedMemorySupported()
+      && hotspot.isThreadAllocatedMemoryEnabled())
+        return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ Copyright (C) 2013 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.phage.bench;
+
+import java.util.LinkedList;
+import java.util.Random;
+import wjd.phage.level.Tile;
+import wjd.phage.level.TileGrid;
+import wjd.phage.pathing.IncrementalSearch;
+import wjd.phage.unit.Macrophage;
+
+/**
+ * Checks the IncrementalSearch against a breadth-first search confined to
+ * its window, while following its path a few steps at a time and changing
+ * Tiles in the window between each repair: walls are knocked in and out,
+ * then Units are put down and picked up. Every repaired path must be found
+ * exactly when the goal can be reached, be of the shortest length and be
+ * made of valid steps. Exits with status 1 if any isn't.
+ *
+ * usage: DStarCheck [trials]
+ *
+ * @author wdyce
+ * @since Feb 21, 2013
+ */
+public abstract class DStarCheck
+{
+  /* CONSTANTS */
+  public static final int DEFAULT_TRIALS = 60;
+  public static final int N_COLS = 120, N_ROWS = 100;
+  public static final float DENSITY = 0.25f;
+  // how far the goal can be from the start, in steps
+  public static final int MAX_DISTANCE = 50;
+  public static final int STEPS = 30, MOVES_PER_STEP = 3, CHANGES_PER_STEP = 4;
+
+  /* CLASS NAMESPACE FUNCTIONS */
+
+  public static void main(String args[])
+  {
+    System.setProperty("java.awt.headless", "true");
+
+    int n_trials = (args.length > 0) ? Integer.parseInt(args[0])
+                    : DEFAULT_TRIALS;
+
+    System.out.println(String.format("%-8s %8s %8s %14s %14s",
+      "changes", "repairs", "bad", "expanded/new", "expanded/step"));
+    int n_bad = check("walls", n_trials, false) + check("units", n_trials, true);
+    if(n_bad > 0)
+      System.exit(1);
+  }
+
+  /* SUBROUTINES */
+
+  private static int check(String name, int n_trials, boolean units)
+  {
+    Random random = new Random(11);
+    int n_repairs = 0, n_bad = 0;
+    long expanded_new = 0, expanded_repair = 0;
+    LinkedList<Tile> path = new LinkedList<Tile>();
+    for(int trial = 0; trial < n_trials; trial++)
+    {
+      TileGrid grid = PathOracle.scatter(N_COLS, N_ROWS, DENSITY, random);
+      int start, goal;
+      do
+        start = random.nextInt(N_COLS * N_ROWS);
+      while(!grid.isPathable(start));
+      do
+        goal = random.nextInt(N_COLS * N_ROWS);
+      while(!grid.isFloor(goal % N_COLS, goal / N_COLS)
+        || Math.abs(goal % N_COLS - start % N_COLS)
+           + Math.abs(goal / N_COLS - start / N_COLS) > MAX_DISTANCE);
+
+      IncrementalSearch search
+        = new IncrementalSearch(grid.getTile(start), grid.getTile(goal));
+      Tile at = grid.getTile(start);
+      for(int step = 0; step < STEPS; step++)
+      {
+        boolean reached = search.writePath(at, path);
+        int distance = PathOracle.distance(grid, at.index, goal, search);
+        if(step == 0)
+          expanded_new += search.getExpanded();
+        else
+        {
+          expanded_repair += search.getExpanded();
+          n_repairs++;
+        }
+        if(reached != (distance >= 0)
+        || (reached && path.size() != distance))
+          n_bad++;
+        if(reached)
+          n_bad += PathOracle.countBadSteps(grid, at.index, goal, path);
+
+        // follow the path a little, then change a few Tiles in the window
+        for(int k = 0; k < MOVES_PER_STEP && !path.isEmpty(); k++)
+          at = path.pop();
+        if(at.index == goal)
+          break;
+        for(int k = 0; k < CHANGES_PER_STEP; k++)
+        {
+          Tile t = grid.getTile(random.nextInt(N_COLS * N_ROWS));
+          if(t == at || t.index == goal || !search.contains(t))
+            continue;
+          if(!units)
+            t.setTerrain(random.nextBoolean()
+                          ? Tile.ETerrain.WALL : Tile.ETerrain.FLOOR);
+          else if(t.getUnit() == null && t.getType() == Tile.ETerrain.FLOOR)
+            t.setUnit(new Macrophage(t));
+          else
+            t.setUnit(null);
+        }
+      }
+    }
+    System.out.println(String.format("%-8s %8d %8d %14.1f %14.2f", name,
+      n_repairs, n_bad, (double)expanded_new / n_trials,
+      (double)expanded_repair / Math.max(1, n_repairs)));
+    return n_bad;
+  }
+}
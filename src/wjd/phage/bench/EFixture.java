@@ -0,0 +1,113 @@
+/*
+ Copyright (C) 2013 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.phage.bench;
+
+import java.util.Random;
+import wjd.math.V2;
+import wjd.phage.level.Concentration;
+import wjd.phage.level.Tile;
+import wjd.phage.level.TileGrid;
+import wjd.phage.unit.CivillianCell;
+import wjd.phage.unit.InfectedCell;
+import wjd.phage.unit.Macrophage;
+
+/**
+ * Reproducible levels for benchmarking: the same size always gives the same 
+ * grid.
+ *
+ * @author wdyce
+ * @since Feb 14, 2013
+ */
+public enum EFixture
+{
+  /** Nothing but floor. */
+  EMPTY
+  {
+    @Override
+    protected void populate(TileGrid grid, Random random)
+    {
+      // leave the grid empty
+    }
+  },
+  
+  /** Walls every other row and column, with a random gap in each. */
+  MAZE
+  {
+    @Override
+    protected void populate(TileGrid grid, Random random)
+    {
+      int w = grid.getWidth(), h = grid.getHeight();
+      for(int row = 2; row < h - 1; row += 4)
+      {
+        int gap = random.nextInt(w);
+        for(int col = 0; col < w; col++)
+          if(Math.abs(col - gap) > 1)
+            grid.gridToTile(col, row).setTerrain(Tile.ETerrain.WALL);
+      }
+      for(int col = 4; col < w - 1; col += 8)
+      for(int row = 0; row < h; row += 4)
+        if(random.nextBoolean())
+          grid.gridToTile(col, row).setTerrain(Tile.ETerrain.WALL);
+    }
+  },
+  
+  /** A maze with infected cells, civillians, macrophages and virus 
+   * everywhere. */
+  INFECTED
+  {
+    @Override
+    protected void populate(TileGrid grid, Random random)
+    {
+      MAZE.populate(grid, random);
+      int w = grid.getWidth(), h = grid.getHeight();
+      for(int row = 0; row < h; row++)
+      for(int col = 0; col < w; col++)
+      {
+        Tile t = grid.gridToTile(col, row);
+        if(!t.isPathable())
+          continue;
+        t.getConcentration(Concentration.EType.VIRUS)
+          .balance(random.nextFloat());
+        switch(random.nextInt(32))
+        {
+          case 0:
+            t.setUnit(new InfectedCell(t));
+            break;
+          case 1:
+            t.setUnit(new CivillianCell(t));
+            break;
+          case 2:
+            t.setUnit(new Macrophage(t));
+            break;
+        }
+      }
+    }
+  };
+  
+  /* METHODS */
+  
+  public TileGrid create(int size)
+  {
+    TileGrid grid = new TileGrid(new V2(size, size)).clear();
+    populate(grid, new Random(size));
+    return grid;
+  }
+  
+  /* INTERFACE */
+  
+  protected abstract void populate(TileGrid grid, Random random);
+}
@@ -0,0 +1,144 @@
+/*
+ Copyright (C) 2013 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.phage.bench;
+
+import java.util.LinkedList;
+import java.util.Random;
+import wjd.math.V2;
+import wjd.phage.level.Tile;
+import wjd.phage.level.TileGrid;
+import wjd.phage.pathing.HierarchicalPlanner;
+
+/**
+ * Checks the HierarchicalPlanner over random pairs of Tiles on each fixture
+ * and on grids of scattered walls: following a plan leg by leg must take
+ * valid steps all the way to the destination whenever a breadth-first
+ * search can reach it. Plans aren't always optimal, so how much longer they
+ * are is only reported. The scattered grids don't line up with the 
+ * clusters, and walls are then knocked in and out of them, after which the 
+ * plans must still hold up and the abstract graph must be the same size as
+ * one built from scratch. Exits with status 1 if any of this fails.
+ *
+ * usage: HpaCheck [size] [searches]
+ *
+ * @author wdyce
+ * @since Feb 21, 2013
+ */
+public abstract class HpaCheck
+{
+  /* CONSTANTS */
+  public static final int DEFAULT_SIZE = 256;
+  public static final int DEFAULT_SEARCHES = 300;
+  public static final int EDITS = 200;
+  // bounds the number of legs followed, in case a plan goes round in circles
+  public static final int MAX_LEGS = 10000;
+
+  /* CLASS NAMESPACE FUNCTIONS */
+
+  public static void main(String args[])
+  {
+    System.setProperty("java.awt.headless", "true");
+
+    int size = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_SIZE,
+        n_searches = (args.length > 1) ? Integer.parseInt(args[1])
+                    : DEFAULT_SEARCHES;
+
+    System.out.println(String.format("%-16s %8s %8s %8s %8s %8s",
+      "grid", "reached", "bad", "stuck", "length", "nodes"));
+    int n_bad = 0;
+    Random random = new Random(size);
+    for(EFixture fixture : EFixture.values())
+      n_bad += check(fixture.name().toLowerCase(), fixture.create(size),
+                     n_searches, random);
+    int n_cols = size * 3 / 5, n_rows = size / 2 + 2;
+    for(float density : PathCheck.DENSITIES)
+    {
+      TileGrid grid = PathOracle.scatter(n_cols, n_rows, density, random);
+      n_bad += check("walls " + density, grid, n_searches, random);
+
+      // the graph is repaired rather than rebuilt after each change
+      for(int k = 0; k < EDITS; k++)
+        grid.getTile(random.nextInt(n_cols * n_rows)).setTerrain(
+          random.nextBoolean() ? Tile.ETerrain.WALL : Tile.ETerrain.FLOOR);
+      n_bad += check("  edited", grid, n_searches, random);
+      TileGrid fresh = new TileGrid(new V2(n_cols, n_rows)).clear();
+      for(int i = 0; i < n_cols * n_rows; i++)
+        if(!grid.isFloor(i % n_cols, i / n_cols))
+          fresh.getTile(i).setTerrain(Tile.ETerrain.WALL);
+      int n_nodes = HierarchicalPlanner.get(fresh).getNodeCount();
+      if(n_nodes != HierarchicalPlanner.get(grid).getNodeCount())
+      {
+        System.out.println(String.format("%-16s %44d MISMATCH",
+                                          "  rebuilt", n_nodes));
+        n_bad++;
+      }
+    }
+    if(n_bad > 0)
+      System.exit(1);
+  }
+
+  /* SUBROUTINES */
+
+  private static int check(String name, TileGrid grid, int n_searches,
+                           Random random)
+  {
+    int n_tiles = grid.getWidth() * grid.getHeight(),
+        n_reached = 0, n_bad = 0, n_stuck = 0;
+    long planned_length = 0, shortest_length = 0;
+    HierarchicalPlanner planner = HierarchicalPlanner.get(grid);
+    LinkedList<Tile> leg = new LinkedList<Tile>();
+    for(int k = 0; k < n_searches; k++)
+    {
+      int start = random.nextInt(n_tiles), goal = random.nextInt(n_tiles);
+      if(!grid.isPathable(start))
+        continue;
+      int distance = PathOracle.distance(grid, start, goal, null);
+
+      // follow the plan as a Unit would
+      HierarchicalPlanner.Plan plan
+        = planner.plan(grid.getTile(start), grid.getTile(goal));
+      Tile at = grid.getTile(start);
+      int length = 0;
+      for(int n_legs = 0; n_legs < MAX_LEGS; n_legs++)
+      {
+        if(!plan.writeNextLeg(at, leg) || leg.isEmpty())
+          break;
+        // each leg may end on a Unit, like the search it comes from
+        n_bad += PathOracle.countBadSteps(grid, at.index,
+                                          leg.getLast().index, leg);
+        length += leg.size();
+        at = leg.getLast();
+      }
+
+      if(distance < 0)
+        continue;
+      n_reached++;
+      if(at.index != goal)
+        n_stuck++;
+      else
+      {
+        planned_length += length;
+        shortest_length += distance;
+      }
+    }
+    System.out.println(String.format("%-16s %8d %8d %8d %8.4f %8d", name,
+      n_reached, n_bad, n_stuck,
+      (double)planned_length / Math.max(1, shortest_length),
+      planner.getNodeCount()));
+    return n_bad + n_stuck;
+  }
+}
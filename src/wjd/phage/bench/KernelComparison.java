@@ -0,0 +1,118 @@
+/*
+ Copyright (C) 2013 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.phage.bench;
+
+import wjd.phage.level.Concentration;
+import wjd.phage.level.Tile;
+import wjd.phage.level.TileGrid;
+
+/**
+ * Compares the scalar and the vectorised concentration kernels on an 
+ * infected grid: throughput of each, and whether the concentrations they 
+ * produce after a number of steps are identical to the last bit. Exits with 
+ * status 1 if any of them differ.
+ * <p>
+ * Run with --add-modules jdk.incubator.vector and the vectorised kernel on 
+ * the class-path, otherwise both sides fall back to the scalar kernel.
+ * 
+ * usage: KernelComparison [size]
+ *
+ * @author wdyce
+ * @since Feb 19, 2013
+ */
+public abstract class KernelComparison 
+{
+  /* CONSTANTS */
+  public static final int DEFAULT_SIZE = 1024;
+  public static final int CHECK_STEPS = 20;
+  
+  /* CLASS NAMESPACE FUNCTIONS */
+  
+  public static void main(String args[])
+  {
+    System.setProperty("java.awt.headless", "true");
+    
+    int size = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_SIZE;
+    
+    // equivalence
+    TileGrid scalar = EFixture.INFECTED.create(size).setVectorised(false),
+             vector = EFixture.INFECTED.create(size).setVectorised(true);
+    if(!vector.isVectorised())
+      System.out.println("vectorised kernel unavailable: comparing scalar "
+                          + "with itself");
+    for(int step = 0; step < CHECK_STEPS; step++)
+    {
+      scalar.update(Concentration.DISPERSION_PERIOD);
+      vector.update(Concentration.DISPERSION_PERIOD);
+    }
+    int mismatches = countMismatches(scalar, vector);
+    System.out.println(String.format("after %d steps: %d concentrations differ, "
+                        + "by up to %g (%s)", CHECK_STEPS, mismatches, 
+                        maxDifference(scalar, vector), 
+                        (mismatches == 0) ? "ok" : "MISMATCH"));
+    if(mismatches > 0)
+      System.exit(1);
+    
+    // throughput
+    System.out.println(String.format("%-8s %14s %8s", 
+                                      "kernel", "ops/s", "speedup"));
+    double base = 0;
+    for(boolean vectorised : new boolean[] { false, true })
+    {
+      ABenchmark.DISPERSE.setUp(
+        EFixture.INFECTED.create(size).setVectorised(vectorised));
+      BenchmarkRunner.measure(ABenchmark.DISPERSE, BenchmarkRunner.WARMUP_NS);
+      long[] result = BenchmarkRunner.measure(ABenchmark.DISPERSE, 
+                                              BenchmarkRunner.MEASURE_NS);
+      double ops_per_second = result[0] * 1e9 / result[1];
+      if(!vectorised)
+        base = ops_per_second;
+      System.out.println(String.format("%-8s %14.1f %7.2fx", 
+                          vectorised ? "vector" : "scalar", ops_per_second, 
+                          ops_per_second / base));
+    }
+  }
+  
+  /* SUBROUTINES */
+  
+  private static int countMismatches(TileGrid a, TileGrid b)
+  {
+    int n = 0;
+    for(Tile t : a)
+    {
+      Tile u = b.getTile(t.index);
+      for(Concentration.EType type : Concentration.EType.values())
+        if(Float.floatToRawIntBits(t.getConcentration(type).balance()) 
+        != Float.floatToRawIntBits(u.getConcentration(type).balance()))
+          n++;
+    }
+    return n;
+  }
+  
+  private static float maxDifference(TileGrid a, TileGrid b)
+  {
+    float max = 0.0f;
+    for(Tile t : a)
+    {
+      Tile u = b.getTile(t.index);
+      for(Concentration.EType type : Concentration.EType.values())
+        max = Math.max(max, Math.abs(t.getConcentration(type).balance() 
+                                    - u.getConcentration(type).balance()));
+    }
+    return max;
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ Copyright (C) 2013 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.phage.bench;
+
+import java.util.LinkedList;
+import java.util.Random;
+import wjd.phage.level.Tile;
+import wjd.phage.level.TileGrid;
+import wjd.phage.pathing.PathSearch;
+
+/**
+ * Checks every path search strategy against a breadth-first search, over
+ * random pairs of Tiles on each fixture and on grids of scattered walls:
+ * each must find the destination exactly when it can be reached, by a path
+ * of the shortest length made of valid steps. Exits with status 1 if any
+ * search doesn't.
+ *
+ * usage: PathCheck [size] [searches]
+ *
+ * @author wdyce
+ * @since Feb 21, 2013
+ */
+public abstract class PathCheck
+{
+  /* CONSTANTS */
+  public static final int DEFAULT_SIZE = 64;
+  public static final int DEFAULT_SEARCHES = 300;
+  public static final float[] DENSITIES = { 0.1f, 0.2f, 0.3f, 0.4f };
+
+  /* CLASS NAMESPACE FUNCTIONS */
+
+  public static void main(String args[])
+  {
+    System.setProperty("java.awt.headless", "true");
+
+    int size = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_SIZE,
+        n_searches = (args.length > 1) ? Integer.parseInt(args[1])
+                    : DEFAULT_SEARCHES;
+
+    System.out.println(String.format("%-10s %-12s %8s %8s %14s",
+      "grid", "strategy", "reached", "bad", "expanded/op"));
+    int n_bad = 0;
+    for(EFixture fixture : EFixture.values())
+      n_bad += check(fixture.name().toLowerCase(), fixture.create(size),
+                     n_searches, new Random(size));
+    for(float density : DENSITIES)
+    {
+      Random random = new Random(size);
+      n_bad += check("walls " + density,
+                     PathOracle.scatter(size, size, density, random),
+                     n_searches, random);
+    }
+    if(n_bad > 0)
+      System.exit(1);
+  }
+
+  /* SUBROUTINES */
+
+  private static int check(String name, TileGrid grid, int n_searches,
+                           Random random)
+  {
+    int n_tiles = grid.getWidth() * grid.getHeight(), n_bad = 0;
+
+    // the same pairs of Tiles for every strategy
+    int[] pairs = new int[2 * n_searches];
+    for(int k = 0; k < n_searches; k++)
+    {
+      do
+        pairs[2*k] = random.nextInt(n_tiles);
+      while(!grid.isPathable(pairs[2*k]));
+      pairs[2*k + 1] = random.nextInt(n_tiles);
+    }
+    int[] distances = new int[n_searches];
+    for(int k = 0; k < n_searches; k++)
+      distances[k] = PathOracle.distance(grid, pairs[2*k], pairs[2*k + 1],
+                                         null);
+
+    LinkedList<Tile> path = new LinkedList<Tile>();
+    for(PathSearch.EStrategy strategy : PathSearch.EStrategy.values())
+    {
+      int n_reached = 0, n_strategy_bad = 0;
+      long expanded = 0;
+      for(int k = 0; k < n_searches; k++)
+      {
+        int start = pairs[2*k], goal = pairs[2*k + 1];
+        PathSearch search = new PathSearch(grid.getTile(start),
+                                           grid.getTile(goal), strategy);
+        expanded += search.getExpanded();
+        if(search.hasResult() != (distances[k] >= 0))
+        {
+          n_strategy_bad++;
+          continue;
+        }
+        if(!search.hasResult())
+          continue;
+        n_reached++;
+        search.writePath(path);
+        if(path.size() != distances[k])
+          n_strategy_bad++;
+        n_strategy_bad += PathOracle.countBadSteps(grid, start, goal, path);
+      }
+      System.out.println(String.format("%-10s %-12s %8d %8d %14.1f", name,
+        strategy.name().toLowerCase(), n_reached, n_strategy_bad,
+        (double)expanded / n_searches));
+      n_bad += n_strategy_bad;
+    }
+    return n_bad;
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ Copyright (C) 2013 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.phage.bench;
+
+import java.util.Random;
+import wjd.phage.level.TileGrid;
+import wjd.phage.pathing.PathSearch;
+
+/**
+ * Compares the path search strategies over random pairs of Tiles on each 
+ * fixture: how many Tiles each expands, how long each takes, and whether 
+ * their paths are the same length.
+ * 
+ * usage: PathComparison [size] [searches]
+ *
+ * @author wdyce
+ * @since Feb 19, 2013
+ */
+public abstract class PathComparison 
+{
+  /* CONSTANTS */
+  public static final int DEFAULT_SIZE = 256;
+  public static final int DEFAULT_SEARCHES = 200;
+  
+  /* CLASS NAMESPACE FUNCTIONS */
+  
+  public static void main(String args[])
+  {
+    System.setProperty("java.awt.headless", "true");
+    
+    int size = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_SIZE,
+        n_searches = (args.length > 1) ? Integer.parseInt(args[1]) 
+                    : DEFAULT_SEARCHES;
+    
+    System.out.println(String.format("%-10s %-12s %14s %14s %10s", 
+      "fixture", "strategy", "expanded/op", "searches/s", "lengths"));
+    for(EFixture fixture : EFixture.values())
+    {
+      TileGrid grid = fixture.create(size);
+      
+      // the same pairs of Tiles for every strategy
+      Random random = new Random(size);
+      int[] pairs = new int[2 * n_searches];
+      for(int k = 0; k < pairs.length; k++)
+        pairs[k] = random.nextInt(size * size);
+      
+      long[] lengths = null;
+      for(PathSearch.EStrategy strategy : PathSearch.EStrategy.values())
+      {
+        // warm up, then measure
+        long expanded = 0, t_start = 0;
+        long[] strategy_lengths = new long[n_searches];
+        for(int pass = 0; pass < 2; pass++)
+        {
+          expanded = 0;
+          t_start = System.nanoTime();
+          for(int k = 0; k < n_searches; k++)
+          {
+            PathSearch search = new PathSearch(grid.getTile(pairs[2*k]), 
+                                    grid.getTile(pairs[2*k + 1]), strategy);
+            expanded += search.getExpanded();
+            strategy_lengths[k] = search.hasResult() ? search.getLength() : -1;
+          }
+        }
+        double seconds = (System.nanoTime() - t_start) * 1e-9;
+        
+        boolean same = true;
+        if(lengths == null)
+          lengths = strategy_lengths;
+        else for(int k = 0; k < n_searches; k++)
+          same &= (lengths[k] == strategy_lengths[k]);
+        System.out.println(String.format("%-10s %-12s %14.1f %14.1f %10s", 
+          fixture.name().toLowerCase(), strategy.name().toLowerCase(), 
+          (double)expanded / n_searches, n_searches / seconds, 
+          same ? "same" : "DIFFERENT"));
+      }
+    }
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ Copyright (C) 2013 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.phage.bench;
+
+import java.util.Arrays;
+import java.util.Random;
+import wjd.math.V2;
+import wjd.phage.level.Tile;
+import wjd.phage.level.TileGrid;
+import wjd.phage.pathing.IncrementalSearch;
+
+/**
+ * What the path checks hold the searches to: shortest distances worked out
+ * by a plain breadth-first search, following the same rules as the searches,
+ * that is that a Unit standing on the goal doesn't block it.
+ *
+ * @author wdyce
+ * @since Feb 21, 2013
+ */
+abstract class PathOracle
+{
+  /* CLASS NAMESPACE FUNCTIONS */
+
+  /**
+   * @param window only go through the Tiles of this search's window, or
+   * null to go anywhere on the grid.
+   * @return the number of steps from start to goal, or -1 if there is no
+   * way through.
+   */
+  static int distance(TileGrid grid, int start, int goal,
+                      IncrementalSearch window)
+  {
+    int[] distances = new int[grid.getWidth() * grid.getHeight()],
+          queue = new int[distances.length];
+    Arrays.fill(distances, -1);
+    distances[start] = 0;
+    queue[0] = start;
+    for(int head = 0, tail = 1; head < tail; head++)
+    {
+      int x = queue[head];
+      if(x == goal)
+        break;
+      for(int offset : grid.getNeighbourOffsets(x, false))
+      {
+        int t = x + offset;
+        if(distances[t] < 0 && canEnter(grid, t, goal)
+        && (window == null || window.contains(grid.getTile(t))))
+        {
+          distances[t] = distances[x] + 1;
+          queue[tail++] = t;
+        }
+      }
+    }
+    return distances[goal];
+  }
+
+  /**
+   * @return the number of invalid steps along a path: steps to a Tile that
+   * isn't next to the previous one, or that can't be entered.
+   */
+  static int countBadSteps(TileGrid grid, int start, int goal,
+                           Iterable<Tile> path)
+  {
+    int n_bad = 0, previous = start, n_cols = grid.getWidth();
+    for(Tile t : path)
+    {
+      if(Math.abs(t.index % n_cols - previous % n_cols)
+         + Math.abs(t.index / n_cols - previous / n_cols) != 1
+      || !canEnter(grid, t.index, goal))
+        n_bad++;
+      previous = t.index;
+    }
+    return n_bad;
+  }
+
+  static boolean canEnter(TileGrid grid, int i, int goal)
+  {
+    return (i == goal) ? grid.isFloor(i % grid.getWidth(), i / grid.getWidth())
+                       : grid.isPathable(i);
+  }
+
+  /**
+   * @return a grid with walls scattered at random over it.
+   */
+  static TileGrid scatter(int n_cols, int n_rows, float density,
+                          Random random)
+  {
+    TileGrid grid = new TileGrid(new V2(n_cols, n_rows)).clear();
+    for(Tile t : grid)
+      if(random.nextFloat() < density)
+        t.setTerrain(Tile.ETerrain.WALL);
+    return grid;
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ Copyright (C) 2013 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.phage.bench;
+
+import wjd.phage.level.Concentration;
+import wjd.phage.level.TileGrid;
+
+/**
+ * Measures how concentration updates scale from 1 to N threads on an 
+ * infected grid, and checks that every thread count gives exactly the same 
+ * result. Exits with status 1 if any of them doesn't.
+ * 
+ * usage: ScalingBenchmark [size] [max-threads]
+ *
+ * @author wdyce
+ * @since Feb 17, 2013
+ */
+public abstract class ScalingBenchmark 
+{
+  /* CONSTANTS */
+  public static final int DEFAULT_SIZE = 1024;
+  public static final int CHECK_STEPS = 20;
+  
+  /* CLASS NAMESPACE FUNCTIONS */
+  
+  public static void main(String args[])
+  {
+    System.setProperty("java.awt.headless", "true");
+    
+    int size = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_SIZE,
+        max_threads = (args.length > 1) ? Integer.parseInt(args[1]) 
+                    : Runtime.getRuntime().availableProcessors();
+    
+    System.out.println(String.format("%-8s %14s %8s %18s", 
+                        "threads", "ops/s", "speedup", "checksum"));
+    double base = 0;
+    long base_checksum = 0;
+    boolean mismatch = false;
+    for(int n_threads = 1; n_threads <= max_threads; n_threads++)
+    {
+      // the same number of steps must give the same state
+      TileGrid grid = EFixture.INFECTED.create(size).setThreads(n_threads);
+      for(int step = 0; step < CHECK_STEPS; step++)
+        grid.update(Concentration.DISPERSION_PERIOD);
+      long checksum = grid.checksum();
+      
+      // throughput
+      ABenchmark.DISPERSE.setUp(
+        EFixture.INFECTED.create(size).setThreads(n_threads));
+      BenchmarkRunner.measure(ABenchmark.DISPERSE, BenchmarkRunner.WARMUP_NS);
+      long[] result = BenchmarkRunner.measure(ABenchmark.DISPERSE, 
+                                              BenchmarkRunner.MEASURE_NS);
+      double ops_per_second = result[0] * 1e9 / result[1];
+      
+      if(n_threads == 1)
+      {
+        base = ops_per_second;
+        base_checksum = checksum;
+      }
+      mismatch |= (checksum != base_checksum);
+      System.out.println(String.format("%-8d %14.1f %7.2fx %18s%s", 
+                          n_threads, ops_per_second, ops_per_second / base,
+                          Long.toHexString(checksum),
+                          (checksum == base_checksum) ? "" : " MISMATCH"));
+    }
+    if(mismatch)
+      System.exit(1);
+  }
+}
@@ -21,6 +21,7 @@ import wjd.math.Rect;
 import wjd.math.V2;
 import wjd.phage.level.Tile;
 import wjd.phage.level.TileGrid;
+import wjd.phage.level.TileRegion;
 
 /**
  *
@@ -33,6 +34,7 @@ public abstract class ABrush implements IVisible
   private final boolean fill;
   private boolean pending_repaint = true;
   protected Rect coverage = new Rect(Tile.SIZE.clone());
+  private TileRegion target_field = new TileRegion();
   
   /* METHODS */
   
@@ -81,9 +83,11 @@ public abstract class ABrush implements IVisible
     // fill entire covered area
     if(fill)
     {
-      TileGrid target_field = grid.createSubGrid(coverage);
-      if(target_field != null) for(Tile target : target_field)
-        touch(target, erase);
+      if(grid.getRegion(coverage, target_field) != null)
+        for(int row = target_field.min_row; row <= target_field.max_row; row++)
+        for(int col = target_field.min_col, i = row*grid.getWidth() + col; 
+            col <= target_field.max_col; col++, i++)
+          touch(grid.getTile(i), erase);
     }
     // only paint a single Tile
     else
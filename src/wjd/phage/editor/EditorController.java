@@ -155,6 +155,7 @@ public class EditorController extends LevelController
   @Override
   public EUpdateResult update(int t_delta)
   {
-    return EUpdateResult.CONTINUE;
+    // pick up any level that has finished loading
+    return super.update(t_delta);
   }
 }
@@ -0,0 +1,104 @@
+/*
+ Copyright (C) 2013 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.phage.level;
+
+import java.util.Arrays;
+
+/**
+ * A set of chunk indices, kept both as a bitmap, for constant-time lookups,
+ * and as a list, so that going through the members costs nothing for the 
+ * chunks that aren't in it.
+ *
+ * @author wdyce
+ * @since Feb 18, 2013
+ */
+final class ChunkSet
+{
+  /* ATTRIBUTES */
+  private final boolean[] members;
+  private int[] list = new int[16];
+  private int size = 0;
+  
+  /* METHODS */
+  
+  // constructors
+  
+  ChunkSet(int n_chunks)
+  {
+    members = new boolean[n_chunks];
+  }
+  
+  // accessors
+  
+  boolean contains(int c)
+  {
+    return members[c];
+  }
+  
+  int size()
+  {
+    return size;
+  }
+  
+  int get(int k)
+  {
+    return list[k];
+  }
+  
+  // mutators
+  
+  void add(int c)
+  {
+    if(members[c])
+      return;
+    members[c] = true;
+    if(size == list.length)
+      list = Arrays.copyOf(list, size * 2);
+    list[size++] = c;
+  }
+  
+  /**
+   * Take a chunk out of the bitmap: it stays in the list until compact is 
+   * called, so that the set can be modified while going through it.
+   */
+  void unmark(int c)
+  {
+    members[c] = false;
+  }
+  
+  /**
+   * Remove the chunks that have been unmarked from the list, and put the 
+   * others back in order.
+   */
+  void compact()
+  {
+    // chunks unmarked then added again appear twice
+    Arrays.sort(list, 0, size);
+    int kept = 0;
+    for(int k = 0; k < size; k++)
+      if(members[list[k]] && (kept == 0 || list[kept - 1] != list[k]))
+        list[kept++] = list[k];
+    size = kept;
+  }
+  
+  void clear()
+  {
+    for(int k = 0; k < size; k++)
+      members[list[k]] = false;
+    size = 0;
+  }
+}
@@ -16,75 +16,52 @@
  */
 package wjd.phage.level;
 
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.util.List;
-import java.util.Random;
-import wjd.amb.control.EUpdateResult;
-import wjd.amb.control.IDynamic;
 import wjd.amb.view.Colour;
 import wjd.amb.view.ICanvas;
 import wjd.amb.view.IVisible;
-import wjd.util.BoundedValue;
-import wjd.util.Timer;
 
 
 /**
+ * A view of one Tile's concentration of a given type. The balances 
+ * themselves are channels of the grid's ConcentrationField, and everything
+ * that differs from one type to the next is data in EType, so adding a type
+ * costs another plane of floats, plus a view for each Tile that has one.
  *
  * @author wdyce
  * @since Jan 2, 2013
  */
-public abstract class Concentration extends BoundedValue implements IDynamic, IVisible
+public final class Concentration implements IVisible
 {
   /* NESTING */
   
+  /** How each particle of a concentration is drawn. */
+  public static enum EParticle { DISC, SPIKES }
+  
   public static enum EType 
   { 
-    VIRUS(ViralConcentration.C), 
-    ANTIBODY(AntibodyConcentration.C);
+    VIRUS(new Colour(20, 50, 206), EParticle.DISC, DISPERSION_SPEED, 0.0f), 
+    ANTIBODY(new Colour(20, 206, 50), EParticle.SPIKES, DISPERSION_SPEED, 0.0f);
     
         
     public final Colour colour;
+    public final EParticle particle;
+    // fraction given to neighbours every DISPERSION_PERIOD
+    public final float dispersion;
+    // fraction destroyed every DECAY_PERIOD, 0 for none
+    public final float decay;
+    public final boolean decays;
     
-    private EType(Colour colour_)
+    private EType(Colour colour_, EParticle particle_, float dispersion_, 
+                  float decay_)
     {
       this.colour = colour_;
+      this.particle = particle_;
+      this.dispersion = dispersion_;
+      this.decay = decay_;
+      this.decays = (decay_ > 0.0f);
     }
   };
   
-  /* CLASS NAMESPACE FUNCTIONS */
-  
-  public static Concentration load(Tile tile,  ObjectInputStream in) 
-  throws IOException, ClassNotFoundException
-  {
-    // create an object of the correct type
-    EType t = (EType )in.readObject();
-    Concentration result = fromType(t, tile);
-    result.balance(in.readFloat());
-    return result;
-    
-  }
-  
-  public static Concentration fromType(EType type, Tile tile)
-  {
-    switch(type)
-    {
-      case VIRUS:
-        return new ViralConcentration(tile);
-        
-      case ANTIBODY:
-        return new AntibodyConcentration(tile);
-        
-        
-        // ... etc
-        
-        
-      default:
-        return null;
-    }
-  }
-  
   /* CONSTANTS */
   public static final int PARTICLE_MAX = 5;
   public static final float PARTICLE_SIZE = 5.0f;
@@ -96,21 +73,19 @@ public abstract class Concentration extends BoundedValue implements IDynamic, IV
   public static final int DECAY_PERIOD = 6000;             // ms
   public static final float DECAY_SPEED = 0.1f;            // fraction
   
+  // antibodies and virus neutralise each other after each dispersion
+  public static final float REACTION_RATE = 0.5f;          // fraction
+  
   public static final int MOVE_PERIOD = 1000;          // ms
   public static final float MOVE_PERIOD_VAR = 0.5f;        // fraction
   
   public static final float CONCENTRATION_MIN = 0.09f;     // fraction
-  
-  /* CLASS ATTRIBUTES */
-  protected static Random r = new Random();
+  public static final float CONCENTRATION_MAX = 1.0f;      // fraction
   
   /* ATTRIBUTES */
-  protected Tile container;
-  private Timer dispersion_timer = new Timer(DISPERSION_PERIOD);
-  private Timer decay_timer = new Timer(DECAY_PERIOD);
-  private Timer move_timer = new Timer(MOVE_PERIOD);
-  
-  private long r_seed;
+  private final ConcentrationField field;
+  private final EType type;
+  private final Tile container;
 
   
   /* METHODS */
@@ -118,110 +93,83 @@ public abstract class Concentration extends BoundedValue implements IDynamic, IV
   
   // constructors
   
-  public Concentration(Tile container_)
+  Concentration(ConcentrationField field_, EType type_, Tile container_)
   {
-    super(1.0f);
-    
+    this.field = field_;
+    this.type = type_;
     this.container = container_;
-    r_seed = r.nextLong();
-    
   }
   
+  // accessors
   
-  // io
+  public float balance()
+  {
+    return field.get(type, container.index);
+  }
   
-  void save(ObjectOutputStream out) throws IOException
+  public boolean isEmpty()
   {
-    out.writeObject(getType());
-    out.writeFloat(balance());
+    return (balance() <= 0.0f);
   }
   
-  /* IMPLEMENTS -- IVISIBLE */
+  public boolean isFull()
+  {
+    return (balance() >= CONCENTRATION_MAX);
+  }
   
-  @Override
-  public void render(ICanvas canvas)
+  public EType getType()
   {
-    float zoom = canvas.getCamera().getZoom();
-    if(!isEmpty() && zoom > PARTICLE_MIN_ZOOM)
-    {
-      // static random seed
-      r.setSeed(r_seed);
-      
-      // draw virus in black
-      canvas.setColour(getColour());
-      
-      // probability of a viral particle being present and number present
-      float p_virus = balance() * zoom;
-      int n_virus =  (int)(p_virus * (float)PARTICLE_MAX);
-      
-      // more than one virus -- draw always
-      if(n_virus >= 1) for(int i = 0; i < n_virus; i++)
-        renderParticle(canvas);
-      
-      // less than one virus -- draw only sometimes
-      else if(r.nextDouble() > p_virus)
-        renderParticle(canvas);
-    }
+    return type;
   }
   
-  /* IMPLEMENTS -- IDYNAMIC */
+  public Colour getColour()
+  {
+    return type.colour;
+  }
   
-  @Override
-  public EUpdateResult update(int t_delta)
+  public boolean doesDecay()
   {
-    // spread infection
-    if(dispersion_timer.update(t_delta) == EUpdateResult.FINISHED)
-      disperse();
-    
-    // destroy infection
-    if(doesDecay() && decay_timer.update(t_delta) == EUpdateResult.FINISHED)
-      decay();
-    
-    // move particles
-    if(move_timer.update(t_delta) == EUpdateResult.FINISHED)
-    {
-      r_seed = r.nextLong();
-       move_timer.balance((float)(Math.random() * MOVE_PERIOD_VAR * MOVE_PERIOD));
-    }
-    
-    // nothing to report
-    return EUpdateResult.CONTINUE;
+    return type.decays;
   }
   
-  /* SUBROUTINES */
+  // mutators
   
-  protected abstract void renderParticle(ICanvas canvas);
+  public void balance(float value)
+  {
+    field.set(type, container.index, 
+              Math.max(0.0f, Math.min(CONCENTRATION_MAX, value)));
+  }
   
-  private void decay()
+  public void empty()
   {
-    // some of the viral particles are destroyed...
-    tryWithdrawPercent(DECAY_SPEED);
-    if(balance() < CONCENTRATION_MIN)
-      empty();
+    field.set(type, container.index, 0.0f);
   }
   
-  private void disperse()
+  public void fill()
   {
-    if(balance() < CONCENTRATION_MIN)
-      return;
-    
-    // disperse infection over neighbours
-    List<Tile> neighbours = container.grid.getNeighbours(container, true);
-    float dispersion = tryWithdrawPercent(DISPERSION_SPEED);
-    float dispersion_per_tile = dispersion / neighbours.size();
-    for(Tile t : neighbours)
-      if(t.getType() == Tile.ETerrain.FLOOR)
-        dispersion -= t.getConcentration(getType()).tryDeposit(dispersion_per_tile);
-    
-    // return whatever is left
-    tryDeposit(dispersion);
+    field.set(type, container.index, CONCENTRATION_MAX);
   }
   
-  /* INTERFACE */
+  public float tryDeposit(float amount)
+  {
+    return field.deposit(type, container.index, amount);
+  }
   
-  public abstract EType getType();
+  public float tryWithdraw(float amount)
+  {
+    return field.withdraw(type, container.index, amount);
+  }
   
-  public abstract Colour getColour();
+  public float tryWithdrawPercent(float fraction)
+  {
+    return tryWithdraw(balance() * fraction);
+  }
   
-  public abstract boolean doesDecay();
+  /* IMPLEMENTS -- IVISIBLE */
+  
+  @Override
+  public void render(ICanvas canvas)
+  {
+    field.render(canvas, type, container);
+  }
 }
@@ -0,0 +1,403 @@
+/*
+ Copyright (C) 2013 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.phage.level;
+
+import wjd.amb.view.ICanvas;
+import wjd.math.V2;
+import wjd.phage.level.Concentration.EType;
+import static wjd.phage.level.Concentration.*;
+
+/**
+ * The concentrations of every type over a whole grid: one channel per 
+ * Concentration.EType, each stored as a float plane per TileChunk and updated
+ * a whole plane at a time by tasks on the level's TickScheduler. The cost of
+ * an update grows with the number of channels and the number of chunks that 
+ * hold anything, not with the number of Tiles.
+ *
+ * @author wdyce
+ * @since Feb 19, 2013
+ */
+public final class ConcentrationField
+{
+  /* CONSTANTS */
+  private static final EType[] TYPES = EType.values();
+  
+  // floats per Tile in a particle layout: the odds of drawing a lone 
+  // particle, then the position of each particle relative to the Tile
+  static final int LAYOUT_SIZE = 1 + 2*PARTICLE_MAX;
+  
+  // the three arms of an antibody
+  private static final V2[] SPIKES = { new V2(0, -PARTICLE_SIZE), 
+                                       new V2(PARTICLE_SIZE, PARTICLE_SIZE), 
+                                       new V2(-PARTICLE_SIZE, PARTICLE_SIZE) };
+  
+  /* CLASS ATTRIBUTES */
+  private static final V2 particle = new V2(), spike = new V2();
+  
+  /* ATTRIBUTES */
+  private final TileStore store;
+  private final TickScheduler scheduler;
+  // reseeded from a Tile's particle seed to lay its particles out, so that 
+  // they stay put until the seed changes: never used by the simulation
+  private final LevelRandom layout_random = new LevelRandom(0);
+  private float reaction_rate = REACTION_RATE;
+  
+  /* METHODS */
+  
+  // constructors
+  
+  ConcentrationField(TileStore store, TickScheduler scheduler)
+  {
+    this.store = store;
+    this.scheduler = scheduler;
+    scheduler.schedule(new TickScheduler.ITask()
+    {
+      @Override
+      public int run(TickScheduler scheduler)
+      {
+        // spread
+        for(EType t : TYPES)
+          disperse(t);
+
+        // neutralise
+        if(reaction_rate > 0.0f)
+          react(EType.VIRUS, EType.ANTIBODY);
+        return DISPERSION_PERIOD;
+      }
+    }, DISPERSION_PERIOD);
+    scheduler.schedule(new TickScheduler.ITask()
+    {
+      @Override
+      public int run(TickScheduler scheduler)
+      {
+        // destroy
+        for(EType t : TYPES)
+          if(t.decays)
+            decay(t);
+        return DECAY_PERIOD;
+      }
+    }, DECAY_PERIOD);
+  }
+  
+  // accessors
+  
+  public int getChannels()
+  {
+    return TYPES.length;
+  }
+  
+  public float getReactionRate()
+  {
+    return reaction_rate;
+  }
+  
+  public float get(EType type, int i)
+  {
+    return store.getConcentration(type.ordinal(), i);
+  }
+  
+  /**
+   * @return a new view of the concentration of a type at a Tile: Tiles 
+   * create theirs once and keep them, so ask the Tile instead.
+   */
+  public Concentration view(EType type, Tile tile)
+  {
+    return new Concentration(this, type, tile);
+  }
+  
+  // mutators
+  
+  /**
+   * @param rate how strongly antibodies and virus neutralise each other 
+   * after each dispersion, from 0 (not at all) to 1.
+   */
+  public ConcentrationField setReactionRate(float rate)
+  {
+    this.reaction_rate = Math.max(0.0f, Math.min(1.0f, rate));
+    return this;
+  }
+  
+  public void set(EType type, int i, float value)
+  {
+    store.setConcentration(type.ordinal(), i, value);
+  }
+  
+  /**
+   * @return how much was actually deposited, as a Tile can't hold more than 
+   * CONCENTRATION_MAX.
+   */
+  public float deposit(EType type, int i, float amount)
+  {
+    float balance = get(type, i),
+          deposited = Math.min(amount, CONCENTRATION_MAX - balance);
+    set(type, i, balance + deposited);
+    return deposited;
+  }
+  
+  /**
+   * @return how much was actually withdrawn, as a Tile can't go below 0.
+   */
+  public float withdraw(EType type, int i, float amount)
+  {
+    float balance = get(type, i),
+          withdrawn = Math.min(amount, balance);
+    set(type, i, balance - withdrawn);
+    return withdrawn;
+  }
+  
+  /* RENDERING */
+  
+  /**
+   * Draw a Tile's particles of a given type, a few of them for each unit of
+   * balance, replaying the layout worked out from the Tile's seed. Particles
+   * only move when they're drawn, so moving them costs nothing per update.
+   */
+  void render(ICanvas canvas, EType type, Tile tile)
+  {
+    float zoom = canvas.getCamera().getZoom(), 
+          balance = get(type, tile.index);
+    if(balance <= 0.0f || zoom <= PARTICLE_MIN_ZOOM)
+      return;
+    
+    float[] layout = getLayout(type.ordinal(), tile.index);
+    int l = store.localIndex(tile.index), o = l * LAYOUT_SIZE;
+    moveParticles(store.chunk(tile.index), type.ordinal(), l, layout);
+    canvas.setColour(type.colour);
+    if(type.particle == EParticle.SPIKES)
+      canvas.setLineWidth(2.0f);
+
+    // probability of a particle being present and number present
+    float p_particle = balance * zoom;
+    int n_particles = Math.min(PARTICLE_MAX, 
+                               (int)(p_particle * (float)PARTICLE_MAX));
+
+    // more than one particle -- draw always
+    if(n_particles >= 1) for(int i = 0; i < n_particles; i++)
+      renderParticle(canvas, type.particle, tile, layout, o + 1 + 2*i);
+
+    // less than one particle -- draw only sometimes
+    else if(layout[o] > p_particle)
+      renderParticle(canvas, type.particle, tile, layout, o + 1);
+  }
+  
+  /* FIELD UPDATES */
+  
+  private void disperse(EType type)
+  {
+    int t = type.ordinal();
+    ChunkSet occupied = store.occupied[t], near = store.dispersion_near;
+    occupied.compact();
+    
+    // only chunks within reach of one that is dispersing can change, and
+    // they need to be there to receive
+    near.clear();
+    for(int k = 0; k < occupied.size(); k++)
+    {
+      int c = occupied.get(k);
+      if(isDispersing(store.chunkAt(c).concentration[t]))
+        wakeNeighbours(c, near);
+    }
+    near.compact();
+    
+    // walls have to be taken into account before anything moves
+    for(int k = 0; k < near.size(); k++)
+    {
+      TileChunk chunk = store.chunkAt(near.get(k));
+      if(chunk.masks_dirty)
+        DiffusionKernel.refreshMasks(store, near.get(k));
+    }
+    
+    // diffuse each of these chunks into its back buffer...
+    store.executor.diffuse(store, near, t);
+    
+    // Tiles sent more than they can take turn the rest back, which changes
+    // the chunks around them too
+    ChunkSet settling = store.dispersion_settling;
+    settling.clear();
+    for(int k = 0; k < near.size(); k++)
+      if(store.dispersion_crowded[near.get(k)])
+        settleNeighbours(near.get(k), settling);
+    if(settling.size() > 0)
+    {
+      settling.compact();
+      store.executor.settle(store, settling, t);
+    }
+    
+    // ... and only swap buffers once every chunk has read its neighbours
+    for(int k = 0; k < near.size(); k++)
+    {
+      int c = near.get(k);
+      if(store.dispersion_changed[c])
+      {
+        TileChunk chunk = store.chunkAt(c);
+        float[] front = chunk.concentration[t];
+        chunk.concentration[t] = chunk.concentration_back[t];
+        chunk.concentration_back[t] = front;
+      }
+      if(store.holding[c])
+        occupied.add(c);
+      else
+        occupied.unmark(c);
+    }
+    occupied.compact();
+  }
+  
+  private void decay(EType type)
+  {
+    int t = type.ordinal();
+    ChunkSet occupied = store.occupied[t];
+    occupied.compact();
+    
+    store.executor.decay(store, occupied, t);
+    
+    // forget about the chunks that are now empty
+    for(int k = 0; k < occupied.size(); k++)
+      if(!store.holding[occupied.get(k)])
+        occupied.unmark(occupied.get(k));
+    occupied.compact();
+  }
+  
+  private void react(EType type, EType other)
+  {
+    // only chunks holding both types can react
+    ChunkSet a = store.occupied[type.ordinal()], 
+             b = store.occupied[other.ordinal()], 
+             reacting = store.reacting;
+    a.compact();
+    b.compact();
+    reacting.clear();
+    for(int k = 0; k < a.size(); k++)
+      if(b.contains(a.get(k)))
+        reacting.add(a.get(k));
+    
+    // chunks left empty are dropped from the occupied sets by the next pass
+    store.executor.react(store, reacting, type.ordinal(), other.ordinal(), 
+                         reaction_rate);
+  }
+  
+  /* SUBROUTINES -- PARTICLE LAYOUTS */
+  
+  /**
+   * @return the particle layout of the chunk containing a Tile, worked out 
+   * the first time it's needed and then only when a Tile's seed changes.
+   */
+  private float[] getLayout(int type, int i)
+  {
+    TileChunk chunk = store.chunk(i);
+    float[] layout = chunk.particle_layout[type];
+    if(layout == null)
+    {
+      layout = chunk.particle_layout[type] 
+        = new float[TileChunk.AREA * LAYOUT_SIZE];
+      for(int l = 0; l < TileChunk.AREA; l++)
+        layParticles(layout, l, chunk.particle_seed[type][l]);
+    }
+    return layout;
+  }
+  
+  private void moveParticles(TileChunk chunk, int type, int l, float[] layout)
+  {
+    int[] due = chunk.particle_due[type];
+    if(scheduler.now() - due[l] < 0)
+      return;
+    
+    int[] seeds = chunk.particle_seed[type];
+    seeds[l] = store.cosmetic.nextInt();
+    layParticles(layout, l, seeds[l]);
+    due[l] = scheduler.now() + MOVE_PERIOD 
+              - (int)(store.cosmetic.nextFloat() * MOVE_PERIOD_VAR * MOVE_PERIOD);
+  }
+  
+  private void layParticles(float[] layout, int l, int seed)
+  {
+    layout_random.setSeed(seed);
+    int o = l * LAYOUT_SIZE;
+    layout[o++] = layout_random.nextFloat();
+    for(int p = 0; p < PARTICLE_MAX; p++)
+    {
+      layout[o++] = PARTICLE_SIZE 
+                    + layout_random.nextFloat() * (Tile.SIZE.x-2*PARTICLE_SIZE);
+      layout[o++] = PARTICLE_SIZE 
+                    + layout_random.nextFloat() * (Tile.SIZE.y-2*PARTICLE_SIZE);
+    }
+  }
+  
+  /* CLASS NAMESPACE FUNCTIONS */
+  
+  static boolean isHolding(float[] plane)
+  {
+    for(int i = 0; i < TileChunk.AREA; i++)
+      if(plane[i] != 0.0f)
+        return true;
+    return false;
+  }
+  
+  /* SUBROUTINES */
+  
+  private static void renderParticle(ICanvas canvas, EParticle shape, 
+                                     Tile tile, float[] layout, int o)
+  {
+    particle.xy(tile.pixel_position.x + layout[o], 
+                tile.pixel_position.y + layout[o + 1]);
+    switch(shape)
+    {
+      case DISC:
+        canvas.circle(particle, PARTICLE_SIZE, true);
+        break;
+        
+      case SPIKES:
+        for(V2 offset : SPIKES)
+          canvas.line(particle, spike.reset(particle).add(offset));
+        break;
+    }
+  }
+  
+  private static boolean isDispersing(float[] plane)
+  {
+    for(int l = 0; l < TileChunk.AREA; l++)
+      if(plane[l] >= CONCENTRATION_MIN)
+        return true;
+    return false;
+  }
+  
+  private void settleNeighbours(int c, ChunkSet settling)
+  {
+    int chunk_row = c / store.n_chunk_cols, chunk_col = c % store.n_chunk_cols;
+    for(int row = Math.max(0, chunk_row - 1); 
+        row <= Math.min(store.n_chunk_rows - 1, chunk_row + 1); row++)
+    for(int col = Math.max(0, chunk_col - 1); 
+        col <= Math.min(store.n_chunk_cols - 1, chunk_col + 1); col++)
+    {
+      // only chunks that have been diffused have anything to correct
+      if(store.dispersion_changed[row * store.n_chunk_cols + col])
+        settling.add(row * store.n_chunk_cols + col);
+    }
+  }
+  
+  private void wakeNeighbours(int c, ChunkSet near)
+  {
+    int chunk_row = c / store.n_chunk_cols, chunk_col = c % store.n_chunk_cols;
+    for(int row = Math.max(0, chunk_row - 1); 
+        row <= Math.min(store.n_chunk_rows - 1, chunk_row + 1); row++)
+    for(int col = Math.max(0, chunk_col - 1); 
+        col <= Math.min(store.n_chunk_cols - 1, chunk_col + 1); col++)
+    {
+      store.writableChunkAt(row * store.n_chunk_cols + col);
+      near.add(row * store.n_chunk_cols + col);
+    }
+  }
+}
@@ -0,0 +1,447 @@
+/*
+ Copyright (C) 2013 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.phage.level;
+
+import static wjd.phage.level.Concentration.CONCENTRATION_MAX;
+import static wjd.phage.level.Concentration.CONCENTRATION_MIN;
+
+/**
+ * Diffuses a concentration plane one chunk at a time, reading the chunk's
+ * current plane (and the edges of its neighbours') and writing the result to
+ * its back buffer, so that the result doesn't depend on the order in which
+ * Tiles or chunks are processed.
+ * <p>
+ * Each Tile with a balance of at least CONCENTRATION_MIN gives away its 
+ * type's dispersion fraction of it, split evenly between the Tiles in its 3x3 
+ * neighbourhood (itself included). The shares that would land on anything 
+ * other than floor are turned back, and so is whatever a Tile can't take 
+ * without going over CONCENTRATION_MAX, so mass is conserved.
+ * <p>
+ * The arithmetic is done by a handful of loops over contiguous rows, which 
+ * a vectorised subclass can override: use create to get the fastest kernel
+ * available.
+ *
+ * @author wdyce
+ * @since Feb 16, 2013
+ */
+class DiffusionKernel
+{
+  /* CONSTANTS */
+  static final int PADDED = TileChunk.SIZE + 2;
+  // a chunk with a 2-Tile border, needed to settle crowded chunks
+  private static final int OUTER = TileChunk.SIZE + 4;
+  // what combine reports about a chunk
+  static final int HOLDING = 1, CROWDED = 2;
+  private static final Concentration.EType[] TYPES 
+    = Concentration.EType.values();
+  
+  // compiled separately, as it needs the jdk.incubator.vector module
+  private static final String VECTORISED 
+    = "wjd.phage.level.VectorDiffusionKernel";
+  
+  /* ATTRIBUTES */
+  // the shares given out by each Tile, with a 1-Tile border taken from the 
+  // neighbouring chunks
+  private final float[] shares = new float[PADDED * PADDED];
+  // the shares summed along each row of 3
+  private final float[] row_sums = new float[PADDED * TileChunk.SIZE];
+  // does the last chunk diffused hold any concentration, and might any of 
+  // its Tiles be sent more than they can take?
+  private boolean holding = false, crowded = false;
+  // working space for settle, allocated the first time it is needed: the 
+  // shares over a chunk and 2 Tiles around it, then over a chunk and 1 Tile
+  // around it, what each Tile is sent by its neighbours and the fraction of
+  // it it turns back
+  private float[] outer_shares = null, others = null, turned_back = null;
+  
+  /* METHODS */
+  
+  // constructors
+  
+  /**
+   * Create a kernel, vectorised if asked for and if the virtual machine 
+   * supports it, falling back to this scalar one otherwise.
+   */
+  static DiffusionKernel create(boolean vectorised)
+  {
+    if(vectorised) try
+    {
+      return (DiffusionKernel)Class.forName(VECTORISED)
+                                .getDeclaredConstructor().newInstance();
+    }
+    catch(ReflectiveOperationException ex)
+    {
+      // the vectorised kernel was left out of the build, or couldn't start
+    }
+    catch(LinkageError ex)
+    {
+      // the jdk.incubator.vector module isn't there
+    }
+    return new DiffusionKernel();
+  }
+  
+  // accessors
+  
+  boolean isVectorised()
+  {
+    return false;
+  }
+  
+  // mutators
+  
+  /**
+   * Diffuse a chunk's plane into its back buffer. Masks must be up to date
+   * for this chunk and its neighbours.
+   * 
+   * @return false if nothing moves, in which case the back buffer is left
+   * untouched and should not be swapped in.
+   */
+  boolean diffuse(TileStore store, int c, int type)
+  {
+    TileChunk chunk = store.chunkAt(c);
+    float[] source = chunk.concentration[type];
+    
+    // gather the shares of this chunk and its border
+    boolean moving = false;
+    int chunk_row = c / store.n_chunk_cols, chunk_col = c % store.n_chunk_cols;
+    for(int dr = -1; dr <= 1; dr++)
+    for(int dc = -1; dc <= 1; dc++)
+      moving |= gatherShares(store, chunk_row + dr, chunk_col + dc, type, 
+                             dr, dc);
+    if(!moving)
+      return false;
+    
+    // sum the shares over each 3x3 neighbourhood, in two passes of 3
+    sumRows(shares, row_sums);
+    
+    float[] destination = chunk.concentration_back[type];
+    if(destination == null)
+      destination = chunk.concentration_back[type] = new float[TileChunk.AREA];
+    int result = combine(source, chunk.mask_keep[type], chunk.mask_open, 
+                         row_sums, destination);
+    holding = ((result & HOLDING) != 0);
+    crowded = ((result & CROWDED) != 0);
+    return true;
+  }
+  
+  /**
+   * Turn back the shares sent to Tiles that can't take them without going 
+   * over CONCENTRATION_MAX, to the Tiles that sent them, correcting the back 
+   * buffer of a chunk that has just been diffused. A Tile holding b, sent o
+   * by its neighbours, takes (CONCENTRATION_MAX - b)/o of each share if 
+   * b + o is more than CONCENTRATION_MAX, so it can't end up over it even if
+   * everything it gave out comes back.
+   * <p>
+   * Only needed for chunks that are crowded, or next to one that is: it's 
+   * done one Tile at a time, reading the front buffers of the chunks around.
+   */
+  void settle(TileStore store, int c, int type)
+  {
+    if(outer_shares == null)
+    {
+      outer_shares = new float[OUTER * OUTER];
+      others = new float[PADDED * PADDED];
+      turned_back = new float[PADDED * PADDED];
+    }
+    int first_row = (c / store.n_chunk_cols) << TileChunk.SHIFT,
+        first_col = (c % store.n_chunk_cols) << TileChunk.SHIFT;
+    
+    // what each Tile gives to each of its neighbours
+    for(int pr = 0; pr < OUTER; pr++)
+    for(int pc = 0; pc < OUTER; pc++)
+      outer_shares[pr * OUTER + pc] 
+        = shareAt(store, type, first_row - 2 + pr, first_col - 2 + pc);
+    
+    // what the Tiles of the chunk and its border are sent, and turn back
+    for(int pr = 0; pr < PADDED; pr++)
+    for(int pc = 0; pc < PADDED; pc++)
+    {
+      int p = pr * PADDED + pc, o = (pr + 1) * OUTER + pc + 1;
+      float sent = -outer_shares[o];
+      for(int dr = -OUTER; dr <= OUTER; dr += OUTER)
+        sent += outer_shares[o + dr - 1] + outer_shares[o + dr] 
+              + outer_shares[o + dr + 1];
+      others[p] = sent;
+      turned_back[p] = (sent > 0.0f) 
+        ? turnedBack(store, type, first_row - 1 + pr, first_col - 1 + pc, sent)
+        : 0.0f;
+    }
+    
+    // take back what was turned away, and give back what was turned back
+    float[] destination = store.chunkAt(c).concentration_back[type];
+    for(int l = 0; l < TileChunk.AREA; l++)
+    {
+      int row = l >> TileChunk.SHIFT, col = l & TileChunk.MASK,
+          p = (row + 1) * PADDED + col + 1;
+      float returned = -turned_back[p];
+      for(int dr = -PADDED; dr <= PADDED; dr += PADDED)
+        returned += turned_back[p + dr - 1] + turned_back[p + dr] 
+                  + turned_back[p + dr + 1];
+      if(returned == 0.0f && turned_back[p] == 0.0f)
+        continue;
+      float given = outer_shares[(row + 2) * OUTER + col + 2];
+      // the rounding error can't be allowed to push anything over the top
+      destination[l] = Math.min(CONCENTRATION_MAX, destination[l] 
+                        - turned_back[p] * others[p] + given * returned);
+    }
+  }
+  
+  /**
+   * @return true if the chunk last diffused holds any concentration at all.
+   */
+  boolean isHolding()
+  {
+    return holding;
+  }
+  
+  /**
+   * @return true if the chunk last diffused needs settling.
+   */
+  boolean isCrowded()
+  {
+    return crowded;
+  }
+  
+  /**
+   * Recalculate the diffusion weights of a chunk after its terrain, or the 
+   * terrain around it, has changed.
+   */
+  static void refreshMasks(TileStore store, int c)
+  {
+    TileChunk chunk = store.chunkAt(c);
+    if(chunk.mask_open == null)
+    {
+      chunk.mask_open = new float[TileChunk.AREA];
+      chunk.mask_share = new float[TYPES.length][TileChunk.AREA];
+      chunk.mask_keep = new float[TYPES.length][TileChunk.AREA];
+    }
+    
+    byte floor = (byte)Tile.ETerrain.FLOOR.ordinal();
+    int first_row = (c / store.n_chunk_cols) << TileChunk.SHIFT,
+        first_col = (c % store.n_chunk_cols) << TileChunk.SHIFT;
+    for(int l = 0; l < TileChunk.AREA; l++)
+    {
+      int row = first_row + (l >> TileChunk.SHIFT),
+          col = first_col + (l & TileChunk.MASK);
+      
+      // parts of the chunk that hang over the edge of the grid
+      if(row >= store.n_rows || col >= store.n_cols)
+      {
+        chunk.mask_open[l] = 0.0f;
+        for(int t = 0; t < TYPES.length; t++)
+        {
+          chunk.mask_share[t][l] = 0.0f;
+          chunk.mask_keep[t][l] = 1.0f;
+        }
+        continue;
+      }
+      
+      // shares are split between neighbours inside the grid...
+      int i = row * store.n_cols + col, n_blocked = 0;
+      int[] neighbours = store.neighbourOffsets(i, true);
+      for(int offset : neighbours)
+        if(store.getTerrain(i + offset) != floor)
+          n_blocked++;
+      
+      // ... and those that land on walls are kept
+      chunk.mask_open[l] = (chunk.terrain[l] == floor) ? 1.0f : 0.0f;
+      for(int t = 0; t < TYPES.length; t++)
+      {
+        float dispersion = TYPES[t].dispersion,
+              share = dispersion / neighbours.length;
+        chunk.mask_share[t][l] = share;
+        chunk.mask_keep[t][l] = 1.0f - dispersion + share * n_blocked;
+      }
+    }
+    chunk.masks_dirty = false;
+  }
+  
+  /* SUBROUTINES -- ARITHMETIC */
+  
+  /**
+   * Work out the shares given out by n Tiles of a row.
+   * 
+   * @return true if any of the shares is not 0.
+   */
+  boolean shareRow(float[] source, float[] share, int l, 
+                   float[] out, int o, int n)
+  {
+    boolean moving = false;
+    for(int end = l + n; l < end; l++, o++)
+    {
+      out[o] = (source[l] >= CONCENTRATION_MIN) ? source[l] * share[l] : 0.0f;
+      moving |= (out[o] != 0.0f);
+    }
+    return moving;
+  }
+  
+  /**
+   * Sum each row of padded shares 3 by 3.
+   */
+  void sumRows(float[] shares, float[] row_sums)
+  {
+    for(int pr = 0; pr < PADDED; pr++)
+    for(int col = 0, s = pr * PADDED, h = pr * TileChunk.SIZE; 
+        col < TileChunk.SIZE; col++, s++, h++)
+      row_sums[h] = shares[s] + shares[s + 1] + shares[s + 2];
+  }
+  
+  /**
+   * Add up what each Tile keeps and what it receives from its neighbours.
+   * 
+   * @return HOLDING if any of the results is not 0, plus CROWDED if any 
+   * Tile might be sent more than it can take, in which case the chunk needs
+   * to be settled.
+   */
+  int combine(float[] source, float[] keep, float[] open, 
+              float[] row_sums, float[] destination)
+  {
+    boolean any = false, crowded = false;
+    for(int l = 0; l < TileChunk.AREA; l++)
+    {
+      // row l of row_sums is centred on the row above Tile l
+      float received = open[l] * (row_sums[l] + row_sums[l + TileChunk.SIZE] 
+                                  + row_sums[l + 2*TileChunk.SIZE]);
+      float kept = (source[l] >= CONCENTRATION_MIN) 
+                    ? source[l] * keep[l] : source[l];
+      destination[l] = kept + received;
+      any |= (destination[l] != 0.0f);
+      crowded |= (source[l] + received > CONCENTRATION_MAX);
+    }
+    return (any ? HOLDING : 0) | (crowded ? CROWDED : 0);
+  }
+  
+  /**
+   * Destroy a fraction of a plane's concentration.
+   * 
+   * @return true if there is any concentration left in the plane.
+   */
+  boolean decay(float[] plane, float fraction)
+  {
+    boolean any = false;
+    for(int l = 0; l < TileChunk.AREA; l++)
+    {
+      // some of the particles are destroyed...
+      plane[l] -= plane[l] * fraction;
+      if(plane[l] < CONCENTRATION_MIN)
+        plane[l] = 0.0f;
+      else
+        any = true;
+    }
+    return any;
+  }
+  
+  /**
+   * Neutralise a fraction of two planes' concentrations, the same amount 
+   * from each: rate times the product of the two balances, which is never 
+   * more than the smaller of the two as long as rate is at most 1.
+   */
+  void react(float[] plane, float[] other, float rate)
+  {
+    for(int l = 0; l < TileChunk.AREA; l++)
+    {
+      float neutralised = rate * plane[l] * other[l];
+      plane[l] -= neutralised;
+      other[l] -= neutralised;
+    }
+  }
+  
+  /* SUBROUTINES */
+  
+  /**
+   * @return what a Tile gives to each of its neighbours, 0 outside the grid.
+   */
+  private static float shareAt(TileStore store, int type, int row, int col)
+  {
+    if(row < 0 || col < 0 || row >= store.n_rows || col >= store.n_cols)
+      return 0.0f;
+    TileChunk chunk = store.chunkAt((row >> TileChunk.SHIFT) 
+                        * store.n_chunk_cols + (col >> TileChunk.SHIFT));
+    if(chunk.mask_share == null)
+      return 0.0f;
+    int l = ((row & TileChunk.MASK) << TileChunk.SHIFT) 
+            | (col & TileChunk.MASK);
+    float balance = chunk.concentration[type][l];
+    return (balance >= CONCENTRATION_MIN) 
+            ? balance * chunk.mask_share[type][l] : 0.0f;
+  }
+  
+  /**
+   * @return the fraction of what a Tile is sent by its neighbours that it 
+   * turns back.
+   */
+  private static float turnedBack(TileStore store, int type, int row, int col, 
+                                  float sent)
+  {
+    if(row < 0 || col < 0 || row >= store.n_rows || col >= store.n_cols)
+      return 0.0f;
+    TileChunk chunk = store.chunkAt((row >> TileChunk.SHIFT) 
+                        * store.n_chunk_cols + (col >> TileChunk.SHIFT));
+    if(chunk.mask_open == null)
+      return 0.0f;
+    int l = ((row & TileChunk.MASK) << TileChunk.SHIFT) 
+            | (col & TileChunk.MASK);
+    float balance = chunk.concentration[type][l];
+    if(chunk.mask_open[l] == 0.0f || balance + sent <= CONCENTRATION_MAX)
+      return 0.0f;
+    return 1.0f - Math.max(0.0f, CONCENTRATION_MAX - balance) / sent;
+  }
+  
+  /**
+   * Copy the shares given out by a neighbouring chunk (or this one if dr and
+   * dc are 0) into the part of the padded shares array that overlaps it.
+   * 
+   * @return true if any of the shares is not 0.
+   */
+  private boolean gatherShares(TileStore store, int chunk_row, int chunk_col,
+                               int type, int dr, int dc)
+  {
+    // which part of the padded array does this chunk overlap?
+    int min_r = (dr < 0) ? 0 : (dr == 0) ? 1 : PADDED - 1,
+        max_r = (dr < 0) ? 0 : (dr == 0) ? PADDED - 2 : PADDED - 1,
+        min_c = (dc < 0) ? 0 : (dc == 0) ? 1 : PADDED - 1,
+        max_c = (dc < 0) ? 0 : (dc == 0) ? PADDED - 2 : PADDED - 1;
+    
+    TileChunk chunk = null;
+    if(chunk_row >= 0 && chunk_row < store.n_chunk_rows 
+    && chunk_col >= 0 && chunk_col < store.n_chunk_cols)
+      chunk = store.chunkAt(chunk_row * store.n_chunk_cols + chunk_col);
+    
+    // nothing is given out by empty chunks, or from outside the grid, or by
+    // chunks that have never dispersed and so have no weights yet
+    if(chunk == null || chunk == TileChunk.EMPTY || chunk.mask_open == null)
+    {
+      for(int pr = min_r; pr <= max_r; pr++)
+      for(int pc = min_c; pc <= max_c; pc++)
+        shares[pr * PADDED + pc] = 0.0f;
+      return false;
+    }
+    
+    boolean moving = false;
+    float[] source = chunk.concentration[type], share = chunk.mask_share[type];
+    for(int pr = min_r; pr <= max_r; pr++)
+    {
+      // padded coordinates, relative to the neighbour chunk
+      int l = (((pr - 1 - dr * TileChunk.SIZE) & TileChunk.MASK) 
+                << TileChunk.SHIFT) 
+              | ((min_c - 1 - dc * TileChunk.SIZE) & TileChunk.MASK);
+      moving |= shareRow(source, share, l, shares, pr * PADDED + min_c, 
+                         max_c - min_c + 1);
+    }
+    return moving;
+  }
+}
@@ -0,0 +1,247 @@
+/*
+ Copyright (C) 2013 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.phage.level;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs the per-chunk passes of the concentration updates (diffusion, decay
+ * and reactions) over a set of chunks, split into bands of consecutive chunks (and 
+ * so of rows, as sets are kept in order) run in parallel on a ForkJoinPool.
+ * Each chunk only ever writes to its own planes, and diffusion reads the 
+ * border rows of the bands around it from the front buffers that nobody 
+ * writes to, so the result is identical, bit for bit, whatever the number of 
+ * threads.
+ *
+ * @author wdyce
+ * @since Feb 17, 2013
+ */
+final class FieldExecutor
+{
+  /* CONSTANTS */
+  
+  /** Thread count used by new grids, overridden by -Dphage.threads=N. */
+  static final int DEFAULT_THREADS = Integer.getInteger("phage.threads", 
+                                Runtime.getRuntime().availableProcessors());
+  
+  /** Use vectorised kernels when possible, unless -Dphage.simd=false. */
+  static final boolean DEFAULT_VECTORISED 
+    = !"false".equals(System.getProperty("phage.simd"));
+  
+  // number of chunks below which a band is not split any further
+  private static final int MIN_BAND = 8;
+  
+  private static final Concentration.EType[] TYPES 
+    = Concentration.EType.values();
+  
+  /* NESTING */
+  
+  private static enum EPass
+  {
+    DIFFUSE,
+    SETTLE,
+    DECAY,
+    REACT
+  }
+  
+  private final class Band extends RecursiveAction
+  {
+    private static final long serialVersionUID = 1L;
+    
+    private final TileStore store;
+    private final ChunkSet chunks;
+    private final EPass pass;
+    private final int type, other, first, end;
+    private final float rate;
+    
+    Band(TileStore store, ChunkSet chunks, EPass pass, int type, int other,
+         float rate, int first, int end)
+    {
+      this.store = store;
+      this.chunks = chunks;
+      this.pass = pass;
+      this.type = type;
+      this.other = other;
+      this.rate = rate;
+      this.first = first;
+      this.end = end;
+    }
+    
+    @Override
+    protected void compute()
+    {
+      if(end - first > MIN_BAND)
+      {
+        int middle = (first + end) >>> 1;
+        invokeAll(new Band(store, chunks, pass, type, other, rate, 
+                           first, middle),
+                  new Band(store, chunks, pass, type, other, rate, 
+                           middle, end));
+      }
+      else
+        run(store, chunks, pass, type, other, rate, first, end);
+    }
+  }
+  
+  /* CLASS ATTRIBUTES */
+  
+  // pools are shared between grids, one per number of threads
+  private static final Map<Integer, ForkJoinPool> pools 
+    = new HashMap<Integer, ForkJoinPool>();
+  
+  /* ATTRIBUTES */
+  
+  private final int n_threads;
+  private final ForkJoinPool pool;
+  private final boolean vectorised;
+  // each thread needs its own working space
+  private final ThreadLocal<DiffusionKernel> kernels 
+    = new ThreadLocal<DiffusionKernel>()
+  {
+    @Override
+    protected DiffusionKernel initialValue()
+    {
+      return DiffusionKernel.create(vectorised);
+    }
+  };
+  
+  /* METHODS */
+  
+  // constructors
+  
+  FieldExecutor(int n_threads, boolean vectorised)
+  {
+    this.n_threads = Math.max(1, n_threads);
+    this.pool = (this.n_threads > 1) ? getPool(this.n_threads) : null;
+    this.vectorised = vectorised;
+  }
+  
+  // accessors
+  
+  int getThreads()
+  {
+    return n_threads;
+  }
+  
+  /**
+   * @return true if the kernels are vectorised: not only were they asked to
+   * be, but the virtual machine can do it.
+   */
+  boolean isVectorised()
+  {
+    return kernels.get().isVectorised();
+  }
+  
+  // mutators
+  
+  /**
+   * Diffuse each of a set of chunks into its back buffer, marking in the
+   * store those that have changed and those still holding any concentration.
+   */
+  void diffuse(TileStore store, ChunkSet chunks, int type)
+  {
+    execute(store, chunks, EPass.DIFFUSE, type, -1, 0.0f);
+  }
+  
+  /**
+   * Turn back what couldn't be taken in each of a set of chunks that have
+   * just been diffused.
+   */
+  void settle(TileStore store, ChunkSet chunks, int type)
+  {
+    execute(store, chunks, EPass.SETTLE, type, -1, 0.0f);
+  }
+  
+  /**
+   * Decay each of a set of chunks, marking in the store those still holding 
+   * any concentration.
+   */
+  void decay(TileStore store, ChunkSet chunks, int type)
+  {
+    execute(store, chunks, EPass.DECAY, type, -1, 0.0f);
+  }
+  
+  /**
+   * Let two types neutralise each other in each of a set of chunks, in 
+   * proportion to the product of their balances.
+   */
+  void react(TileStore store, ChunkSet chunks, int type, int other, float rate)
+  {
+    execute(store, chunks, EPass.REACT, type, other, rate);
+  }
+  
+  /* SUBROUTINES */
+  
+  private static synchronized ForkJoinPool getPool(int n_threads)
+  {
+    ForkJoinPool pool = pools.get(n_threads);
+    if(pool == null)
+    {
+      pool = new ForkJoinPool(n_threads);
+      pools.put(n_threads, pool);
+    }
+    return pool;
+  }
+  
+  private void execute(TileStore store, ChunkSet chunks, EPass pass, int type,
+                       int other, float rate)
+  {
+    if(pool == null || chunks.size() <= MIN_BAND)
+      run(store, chunks, pass, type, other, rate, 0, chunks.size());
+    else
+      pool.invoke(new Band(store, chunks, pass, type, other, rate, 
+                           0, chunks.size()));
+  }
+  
+  private void run(TileStore store, ChunkSet chunks, EPass pass, int type, 
+                   int other, float rate, int first, int end)
+  {
+    DiffusionKernel kernel = kernels.get();
+    for(int k = first; k < end; k++)
+    {
+      int c = chunks.get(k);
+      TileChunk chunk = store.chunkAt(c);
+      switch(pass)
+      {
+        case DIFFUSE:
+          store.dispersion_changed[c] = kernel.diffuse(store, c, type);
+          store.holding[c] = store.dispersion_changed[c] ? kernel.isHolding()
+                : ConcentrationField.isHolding(chunk.concentration[type]);
+          store.dispersion_crowded[c] 
+            = store.dispersion_changed[c] && kernel.isCrowded();
+          break;
+          
+        case SETTLE:
+          kernel.settle(store, c, type);
+          break;
+          
+        case DECAY:
+          store.holding[c] = kernel.decay(chunk.concentration[type], 
+                                          TYPES[type].decay);
+          break;
+          
+        case REACT:
+          kernel.react(chunk.concentration[type], chunk.concentration[other],
+                       rate);
+          break;
+      }
+    }
+  }
+}
@@ -50,13 +50,13 @@ public class FogOfWar
   {
     flares.clear();
     
-    for(Tile t : grid)
+    // shroud everything
+    grid.setVisibility(Tile.EVisibility.UNSEEN);
+    
+    // build a list of units that can see
+    for(int i = grid.nextUnit(0); i >= 0; i = grid.nextUnit(i + 1))
     {
-      // shroud everything
-      t.setVisibility(Tile.EVisibility.UNSEEN);
-      
-      // build a list of units that can see
-      Unit u = t.getUnit();
+      Unit u = grid.getUnit(i);
       if(u == null) 
         continue;
       Circle f = u.getSight();
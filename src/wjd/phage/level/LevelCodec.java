@@ -0,0 +1,310 @@
+/*
+ Copyright (C) 2013 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.phage.level;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * How the chunk records of a level file are compressed: concentrations can 
+ * be quantised to 8 or 16 bits, as long as this stays within the requested 
+ * error bound, records can be run-length encoded (PackBits) to squash the 
+ * long runs of floor, empty concentration and empty unit slots, and the 
+ * result can be deflated on top of that.
+ *
+ * @author wdyce
+ * @since Feb 12, 2013
+ */
+public final class LevelCodec
+{
+  /* CONSTANTS */
+  
+  // header flags, alongside LevelFile.FLAG_NEIGHBOURS
+  static final short FLAG_RLE = 2, FLAG_QUANTISE_8 = 4, FLAG_QUANTISE_16 = 8,
+                     FLAG_DEFLATE = 16;
+  static final short FLAG_COMPRESSED = FLAG_RLE | FLAG_DEFLATE;
+  
+  /** Floats written as they are, records written uncompressed. */
+  public static final LevelCodec RAW = new LevelCodec(false, 0.0f, false);
+  /** Run-length encoded and deflated, concentrations on 16 bits. */
+  public static final LevelCodec DEFAULT = new LevelCodec(true, 1e-4f, true);
+  /** Run-length encoded and deflated, concentrations on 8 bits. */
+  public static final LevelCodec COMPACT 
+    = new LevelCodec(true, 0.5f * Concentration.CONCENTRATION_MAX / 255, true);
+  
+  /* ATTRIBUTES */
+  public final boolean rle, deflate;
+  // number of bits per concentration, 32 for floats
+  public final int concentration_bits;
+  // reused from one record to the next, created the first time they're needed
+  private Deflater deflater = null;
+  private Inflater inflater = null;
+  
+  /* METHODS */
+  
+  // constructors
+  
+  /**
+   * @param rle run-length encode records.
+   * @param max_error largest error allowed on concentrations: the smallest 
+   * quantisation within this bound is used, or none at all if it is 0.
+   * @param deflate deflate records.
+   */
+  public LevelCodec(boolean rle, float max_error, boolean deflate)
+  {
+    this.rle = rle;
+    this.deflate = deflate;
+    
+    // rounding to the nearest level is out by at most half a level
+    float max = Concentration.CONCENTRATION_MAX;
+    if(max_error >= 0.5f * max / 255)
+      concentration_bits = 8;
+    else if(max_error >= 0.5f * max / 65535)
+      concentration_bits = 16;
+    else
+      concentration_bits = 32;
+  }
+  
+  private LevelCodec(short flags)
+  {
+    rle = ((flags & FLAG_RLE) != 0);
+    deflate = ((flags & FLAG_DEFLATE) != 0);
+    concentration_bits = ((flags & FLAG_QUANTISE_8) != 0) ? 8 
+                       : ((flags & FLAG_QUANTISE_16) != 0) ? 16 : 32;
+  }
+  
+  // accessors
+  
+  static LevelCodec fromFlags(short flags)
+  {
+    return new LevelCodec(flags);
+  }
+  
+  short getFlags()
+  {
+    return (short)((rle ? FLAG_RLE : 0) | (deflate ? FLAG_DEFLATE : 0)
+            | (concentration_bits == 8 ? FLAG_QUANTISE_8 
+              : concentration_bits == 16 ? FLAG_QUANTISE_16 : 0));
+  }
+  
+  boolean isCompressed()
+  {
+    return (rle || deflate);
+  }
+  
+  int concentrationSize()
+  {
+    return concentration_bits / 8;
+  }
+  
+  /* SUBROUTINES */
+  
+  void putConcentration(ByteBuffer out, float value)
+  {
+    float max = Concentration.CONCENTRATION_MAX;
+    switch(concentration_bits)
+    {
+      case 8:
+        out.put((byte)Math.round(value / max * 255));
+        break;
+      case 16:
+        out.putShort((short)Math.round(value / max * 65535));
+        break;
+      default:
+        out.putFloat(value);
+        break;
+    }
+  }
+  
+  float getConcentration(ByteBuffer in)
+  {
+    float max = Concentration.CONCENTRATION_MAX;
+    switch(concentration_bits)
+    {
+      case 8:
+        return (in.get() & 0xFF) * max / 255;
+      case 16:
+        return (in.getShort() & 0xFFFF) * max / 65535;
+      default:
+        return in.getFloat();
+    }
+  }
+  
+  /**
+   * Compress a record of planes.
+   * 
+   * @param planes the uncompressed record.
+   * @param length the length of the uncompressed record.
+   * @param out destination of the compressed record, at least 
+   * maxCompressedSize(length) long.
+   * @param scratch intermediate buffer, also maxCompressedSize(length) long.
+   * @return the length of the compressed record.
+   */
+  synchronized int compress(byte[] planes, int length, byte[] out, 
+                            byte[] scratch)
+  {
+    if(rle)
+    {
+      if(!deflate)
+        return pack(planes, length, out);
+      length = pack(planes, length, scratch);
+      planes = scratch;
+    }
+    
+    if(deflater == null)
+      deflater = new Deflater(Deflater.BEST_SPEED);
+    else
+      deflater.reset();
+    deflater.setInput(planes, 0, length);
+    deflater.finish();
+    int n_out = 0;
+    while(!deflater.finished())
+      n_out += deflater.deflate(out, n_out, out.length - n_out);
+    return n_out;
+  }
+  
+  /**
+   * Decompress a record of planes.
+   * 
+   * @param in buffer positioned at the start of the compressed record.
+   * @param length length of the compressed record.
+   * @param planes destination of the uncompressed record.
+   * @param planes_length the length of the uncompressed record.
+   * @param scratch intermediate buffer.
+   */
+  synchronized void decompress(ByteBuffer in, int length, byte[] planes, 
+                               int planes_length, byte[] scratch) 
+  throws IOException
+  {
+    // grab the compressed bytes
+    byte[] packed = new byte[length];
+    in.get(packed);
+    
+    if(deflate)
+    {
+      if(inflater == null)
+        inflater = new Inflater();
+      else
+        inflater.reset();
+      try
+      {
+        inflater.setInput(packed, 0, length);
+        byte[] inflated = rle ? scratch : planes;
+        length = 0;
+        while(!inflater.finished())
+        {
+          int n = inflater.inflate(inflated, length, inflated.length - length);
+          if(n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+            throw new IOException("truncated record");
+          length += n;
+          // a corrupt record could go on inflating forever otherwise
+          if(length == inflated.length && !inflater.finished())
+            throw new IOException("record is longer than " + length 
+                                  + " bytes once inflated");
+        }
+        packed = inflated;
+      }
+      catch(DataFormatException ex)
+      {
+        throw new IOException(ex);
+      }
+    }
+    
+    if(rle)
+      unpack(packed, length, planes, planes_length);
+    else if(length != planes_length)
+      throw new IOException("record is " + length + " bytes long, expected " 
+                            + planes_length);
+  }
+  
+  /**
+   * Worst-case size of a record once compressed.
+   */
+  static int maxCompressedSize(int length)
+  {
+    // PackBits adds a byte per 128 literals, deflate 5 bytes per 16KB block
+    return length + length / 64 + 64;
+  }
+  
+  /**
+   * PackBits: a header n in [0, 127] is followed by n + 1 literal bytes, a 
+   * header n in [-127, -1] by a byte to be repeated 1 - n times.
+   */
+  private static int pack(byte[] in, int length, byte[] out)
+  {
+    int n_out = 0, i = 0;
+    while(i < length)
+    {
+      // measure the run starting here
+      int run = 1;
+      while(i + run < length && run < 128 && in[i + run] == in[i])
+        run++;
+      
+      if(run > 1)
+      {
+        out[n_out++] = (byte)(1 - run);
+        out[n_out++] = in[i];
+        i += run;
+      }
+      else
+      {
+        // literals continue until the next run of at least 3 bytes
+        int start = i, header = n_out++;
+        while(i < length && i - start < 128 
+        && !(i + 2 < length && in[i] == in[i + 1] && in[i] == in[i + 2]))
+          out[n_out++] = in[i++];
+        out[header] = (byte)(i - start - 1);
+      }
+    }
+    return n_out;
+  }
+  
+  private static void unpack(byte[] in, int length, byte[] out, 
+                             int out_length) throws IOException
+  {
+    int n_out = 0, i = 0;
+    try
+    {
+      while(i < length)
+      {
+        int header = in[i++];
+        if(header >= 0)
+        {
+          System.arraycopy(in, i, out, n_out, header + 1);
+          i += header + 1;
+          n_out += header + 1;
+        }
+        else if(header != -128)
+        {
+          for(int n = 1 - header; n > 0; n--)
+            out[n_out++] = in[i];
+          i++;
+        }
+      }
+    }
+    catch(IndexOutOfBoundsException ex)
+    {
+      throw new IOException("corrupt record", ex);
+    }
+    if(n_out != out_length)
+      throw new IOException("record is " + n_out + " bytes long, expected " 
+                            + out_length);
+  }
+}
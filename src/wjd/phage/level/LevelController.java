@@ -67,6 +67,8 @@ public abstract class LevelController implements IController, IVisible, IDynamic
   
   /* ATTRIBUTES */
   protected LevelScene level;
+  // grid read by the loading thread, waiting to be swapped in on update
+  private volatile TileGrid loaded = null;
   
   /* METHODS */
   
@@ -84,6 +86,24 @@ public abstract class LevelController implements IController, IVisible, IDynamic
     // overridden if needed
   }
   
+  /* IMPLEMENTS -- IDYNAMIC */
+  
+  @Override
+  public EUpdateResult update(int t_delta)
+  {
+    // swap in the level that has finished loading, if there is one
+    TileGrid grid = loaded;
+    if(grid != null)
+    {
+      loaded = null;
+      level.tilegrid = grid;
+      level.fog.setGrid(grid);
+    }
+    
+    // all clear
+    return EUpdateResult.CONTINUE;
+  }
+  
   /* OVERRIDES -- CONTROLLER */
   
   @Override
@@ -140,22 +160,36 @@ public abstract class LevelController implements IController, IVisible, IDynamic
     System.gc();
   }
   
-  private void load(File file)
+  private void load(final File file)
   {
-    TileGrid backup = level.tilegrid;
-    try
-    {
-      level.tilegrid = new TileGrid(file);
-      level.fog.setGrid(level.tilegrid);
-      System.gc();
-    }
-    catch (IOException ex)
-    {
-      Logger.getLogger(LevelController.class.getName()).log(Level.SEVERE, null, ex);
-    }
-    catch (ClassNotFoundException ex)
+    // read the file in the background so as not to block the render loop:
+    // chunks are then decoded as the simulation or the camera reach them
+    Thread loader = new Thread("level loader")
     {
-      Logger.getLogger(LevelController.class.getName()).log(Level.SEVERE, null, ex);
-    }
+      @Override
+      public void run()
+      {
+        try
+        {
+          loaded = TileGrid.load(file);
+        }
+        catch (IOException ex)
+        {
+          Logger.getLogger(LevelController.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        catch (ClassNotFoundException ex)
+        {
+          Logger.getLogger(LevelController.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        catch (RuntimeException ex)
+        {
+          // a file this broken would otherwise take the thread down silently
+          Logger.getLogger(LevelController.class.getName()).log(Level.SEVERE, 
+            file + " could not be loaded", ex);
+        }
+      }
+    };
+    loader.setDaemon(true);
+    loader.start();
   }
 }
@@ -0,0 +1,525 @@
+/*
+ Copyright (C) 2013 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.phage.level;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import wjd.math.Rect;
+import wjd.math.V2;
+import wjd.phage.unit.Unit;
+
+/**
+ * Reads and writes level (LVL) files. Version 2 files are laid out as follows,
+ * big-endian:
+ * <pre>
+ *   int     MAGIC
+ *   short   format version
+ *   short   flags
+ *   int     number of columns, number of rows
+ *   int     number of concentration types
+ *   long    seed of the level's random streams, only if FLAG_SEED is set
+ *   long[]  offset of each chunk's record, row by row, 0 for empty chunks;
+ *           if FLAG_CONTENTS is set, the top 16 bits say what the record 
+ *           holds: HAS_UNITS, then a bit per concentration type
+ *   ...     one record per non-empty chunk, made up of TileChunk.AREA-long
+ *           planes: terrain (bytes), terrain neighbourhood hashes (shorts,
+ *           only if FLAG_NEIGHBOURS is set), each concentration type 
+ *           (floats, or quantised to unsigned bytes or shorts) and units 
+ *           (bytes, Unit.EType ordinal + 1, 0 if there is no unit)
+ * </pre>
+ * If the flags specify a compressed LevelCodec, each record is instead an int
+ * length followed by that many bytes of compressed planes.
+ * Files are memory-mapped rather than read, and each chunk is only decoded
+ * the first time it is accessed, so even huge levels open instantly. The 
+ * chunk table says which chunks hold units or concentrations, so that the 
+ * simulation only decodes those and the chunks around them, leaving the rest
+ * of the level to the page cache until it comes into view. Version 1 files, 
+ * a Java-serialised stream of Tile records, can still be read but are no 
+ * longer written.
+ *
+ * @author wdyce
+ * @since Feb 11, 2013
+ */
+final class LevelFile
+{
+  /* CONSTANTS */
+  static final int MAGIC = 0x50484147; // "PHAG"
+  static final short VERSION = 2;
+  private static final int SERIALISATION_MAGIC = 0xACED0005;
+  private static final int HEADER_SIZE = 4 + 2 + 2 + 4 + 4 + 4;
+  private static final int BUFFER_SIZE = 1 << 16;
+  
+  // records contain the terrain hashes, so chunks can be decoded separately
+  static final short FLAG_NEIGHBOURS = 1;
+  // the header contains the level's random seed
+  static final short FLAG_SEED = 32;
+  // the chunk table says what each record holds
+  static final short FLAG_CONTENTS = 64;
+  
+  // offsets take up the bottom of each entry in the chunk table
+  private static final int OFFSET_BITS = 48;
+  private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+  static final long HAS_UNITS = 1L << OFFSET_BITS;
+  // the largest level whose size can be stored in a V2 exactly
+  private static final int MAX_SIDE = 1 << 24;
+  
+  // level files are mapped in segments as a single mapping is limited to 2GB
+  private static final long SEGMENT_SIZE = 1L << 30;
+  private static final int MAX_RECORD = 4 + LevelCodec.maxCompressedSize(
+    planesSize(Concentration.EType.values().length, FLAG_NEIGHBOURS, 
+               LevelCodec.RAW));
+  
+  private static final Unit.EType[] UNIT_TYPES = Unit.EType.values();
+  
+  /* NESTING */
+  
+  /**
+   * A memory-mapped level file, from which chunks are decoded on demand.
+   */
+  static final class Mapping
+  {
+    // segments overlap so that no record straddles two of them
+    private final MappedByteBuffer[] segments;
+    private final long size;
+    private long[] offsets;
+    private boolean[] units;
+    private short flags;
+    private LevelCodec codec;
+    private int planes_size, n_pending = 0;
+    // decompression buffers, allocated the first time they are needed
+    private byte[] planes = null, scratch = null;
+    
+    private Mapping(FileChannel channel) throws IOException
+    {
+      size = channel.size();
+      int n_segments = (int)((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+      segments = new MappedByteBuffer[Math.max(1, n_segments)];
+      for(int s = 0; s < segments.length; s++)
+      {
+        long start = s * SEGMENT_SIZE;
+        segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, start, 
+                        Math.min(size - start, SEGMENT_SIZE + MAX_RECORD));
+      }
+    }
+    
+    /**
+     * @return true unless the chunk's record is known not to hold any units.
+     */
+    boolean hasUnits(int c)
+    {
+      return units[c];
+    }
+    
+    /**
+     * Decode a chunk from the file and store it, forgetting the file once all
+     * the chunks it contains have been decoded. Chunks are only stored once 
+     * they're complete, so that other threads can use them without locking.
+     */
+    synchronized TileChunk decode(TileStore store, int c)
+    {
+      // another thread may have got here first
+      TileChunk chunk = store.peekChunk(c);
+      if(chunk != null)
+        return chunk;
+      
+      ByteBuffer record 
+        = segments[(int)(offsets[c] / SEGMENT_SIZE)].duplicate();
+      record.position((int)(offsets[c] % SEGMENT_SIZE));
+      try
+      {
+        if(codec.isCompressed())
+        {
+          allocatePlanes();
+          int length = (record.remaining() >= 4) ? record.getInt() : -1;
+          if(length < 0 || length > record.remaining())
+            throw new IOException("record of " + length 
+                                  + " bytes overruns the file");
+          codec.decompress(record, length, planes, planes_size, scratch);
+          record = ByteBuffer.wrap(planes);
+        }
+        else if(record.remaining() < planes_size)
+          throw new IOException("record overruns the file");
+      }
+      catch (IOException ex)
+      {
+        // the file has already been opened, so there's no going back now
+        Logger.getLogger(LevelFile.class.getName()).log(Level.SEVERE, 
+          "chunk " + c + " could not be decoded", ex);
+        allocatePlanes();
+        Arrays.fill(planes, (byte)0);
+        record = ByteBuffer.wrap(planes);
+      }
+      
+      chunk = store.createChunk(c);
+      readPlanes(record, store, chunk, c, flags, codec);
+      store.putChunk(c, chunk);
+      if(--n_pending == 0)
+        store.mapping = null;
+      return chunk;
+    }
+    
+    private void allocatePlanes()
+    {
+      if(planes == null)
+      {
+        planes = new byte[planes_size];
+        scratch = new byte[LevelCodec.maxCompressedSize(planes_size)];
+      }
+    }
+  }
+  
+  /* CLASS NAMESPACE FUNCTIONS */
+  
+  static TileGrid read(File file) throws IOException, ClassNotFoundException
+  {
+    // what kind of file is this?
+    DataInputStream peek = new DataInputStream(new FileInputStream(file));
+    int magic;
+    try
+    {
+      magic = peek.readInt();
+    }
+    finally
+    {
+      peek.close();
+    }
+    
+    if(magic == MAGIC)
+      return readChunks(file);
+    else if(magic == SERIALISATION_MAGIC)
+      return readLegacy(file);
+    else
+      throw new IOException(file + " is not a level file");
+  }
+  
+  static void write(TileGrid grid, File file, LevelCodec codec) 
+  throws IOException
+  {
+    TileStore store = grid.store;
+    int n_types = Concentration.EType.values().length;
+    short flags = (short)(FLAG_NEIGHBOURS | FLAG_SEED | FLAG_CONTENTS 
+                          | codec.getFlags());
+    int planes_size = planesSize(n_types, flags, codec);
+    
+    // decode any chunks still mapped, which must be done before overwriting 
+    // the file they come from
+    for(int c = 0; c < store.n_chunks; c++)
+      store.chunkAt(c);
+    
+    RandomAccessFile out = new RandomAccessFile(file, "rw");
+    try
+    {
+      out.setLength(0);
+      FileChannel channel = out.getChannel();
+      ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE + MAX_RECORD);
+      byte[] planes = new byte[planes_size], compressed = null, scratch = null;
+      if(codec.isCompressed())
+      {
+        compressed = new byte[LevelCodec.maxCompressedSize(planes_size)];
+        scratch = new byte[compressed.length];
+      }
+
+      // header, leaving the chunk table to be filled in at the end
+      buffer.putInt(MAGIC);
+      buffer.putShort(VERSION);
+      buffer.putShort(flags);
+      buffer.putInt(store.n_cols);
+      buffer.putInt(store.n_rows);
+      buffer.putInt(n_types);
+      buffer.putLong(store.seed);
+      flush(buffer, channel);
+      long[] offsets = new long[store.n_chunks];
+      // file position of the start of the buffer
+      long written = HEADER_SIZE + 8 + 8L * store.n_chunks;
+      channel.position(written);
+
+      // chunk records
+      for(int c = 0; c < store.n_chunks; c++)
+      {
+        TileChunk chunk = store.chunkAt(c);
+        if(chunk == TileChunk.EMPTY)
+          continue;
+        if(buffer.position() > BUFFER_SIZE)
+        {
+          written += buffer.position();
+          flush(buffer, channel);
+        }
+        offsets[c] = (written + buffer.position()) | contents(chunk);
+        writePlanes(chunk, ByteBuffer.wrap(planes), store, codec);
+        if(codec.isCompressed())
+        {
+          int length = codec.compress(planes, planes_size, compressed, scratch);
+          buffer.putInt(length);
+          buffer.put(compressed, 0, length);
+        }
+        else
+          buffer.put(planes);
+      }
+      flush(buffer, channel);
+      
+      // now that we know where the records are, fill in the chunk table
+      channel.position(HEADER_SIZE + 8);
+      for(int c = 0; c < store.n_chunks; c++)
+      {
+        if(buffer.remaining() < 8)
+          flush(buffer, channel);
+        buffer.putLong(offsets[c]);
+      }
+      flush(buffer, channel);
+    }
+    finally
+    {
+      out.close();
+    }
+  }
+  
+  /* SUBROUTINES */
+  
+  private static int planesSize(int n_types, short flags, LevelCodec codec)
+  {
+    int neighbours = ((flags & FLAG_NEIGHBOURS) != 0) ? 2 : 0;
+    return TileChunk.AREA 
+      * (1 + neighbours + codec.concentrationSize()*n_types + 1);
+  }
+  
+  /**
+   * @return the bits of a chunk table entry that say what a chunk holds.
+   */
+  private static long contents(TileChunk chunk)
+  {
+    long bits = 0;
+    for(int l = 0; l < TileChunk.AREA; l++)
+      if(chunk.unit[TileChunk.PRESENT][l] != 0 
+      || chunk.unit[TileChunk.INBOUND][l] != 0)
+        bits |= HAS_UNITS;
+    for(int t = 0; t < chunk.concentration.length; t++)
+      if(ConcentrationField.isHolding(chunk.concentration[t]))
+        bits |= HAS_UNITS << (1 + t);
+    return bits;
+  }
+  
+  private static void flush(ByteBuffer buffer, FileChannel channel) 
+  throws IOException
+  {
+    buffer.flip();
+    while(buffer.hasRemaining())
+      channel.write(buffer);
+    buffer.clear();
+  }
+  
+  private static void writePlanes(TileChunk chunk, ByteBuffer buffer, 
+                                  TileStore store, LevelCodec codec)
+  {
+    buffer.put(chunk.terrain);
+    for(int l = 0; l < TileChunk.AREA; l++)
+      buffer.putShort(chunk.terrain_neighbours[l]);
+    for(float[] plane : chunk.concentration)
+      for(int l = 0; l < TileChunk.AREA; l++)
+        codec.putConcentration(buffer, plane[l]);
+    
+    // units are identified by their type, or 0 if there is no unit
+    for(int l = 0; l < TileChunk.AREA; l++)
+    {
+      int id = chunk.unit[TileChunk.PRESENT][l];
+      if(id == 0)
+        id = chunk.unit[TileChunk.INBOUND][l];
+      Unit u = store.getUnitById(id);
+      buffer.put((byte)(u == null ? 0 : u.getType().ordinal() + 1));
+    }
+  }
+  
+  private static TileGrid readChunks(File file) throws IOException
+  {
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try
+    {
+      // the mapping remains valid once the file is closed
+      Mapping mapping = new Mapping(in.getChannel());
+      ByteBuffer header = mapping.segments[0].duplicate();
+      if(mapping.size < HEADER_SIZE)
+        throw new IOException(file + ": header is truncated");
+      header.getInt();
+      short version = header.getShort();
+      if(version != VERSION)
+        throw new IOException(file + ": unsupported version " + version);
+      mapping.flags = header.getShort();
+      int n_cols = header.getInt(), n_rows = header.getInt(),
+          n_types = header.getInt();
+      if(n_cols <= 0 || n_rows <= 0 || n_cols > MAX_SIDE || n_rows > MAX_SIDE
+      || (long)n_cols * n_rows > Integer.MAX_VALUE)
+        throw new IOException(file + ": invalid size " + n_cols + "x" + n_rows);
+      if(n_types != Concentration.EType.values().length)
+        throw new IOException(file + ": " + n_types + " concentration types");
+      mapping.codec = LevelCodec.fromFlags(mapping.flags);
+      mapping.planes_size = planesSize(n_types, mapping.flags, mapping.codec);
+      int record_size = mapping.codec.isCompressed() ? 4 : mapping.planes_size;
+      
+      // the header and the chunk table must fit before any records do
+      long n_chunks = (long)((n_cols + TileChunk.MASK) >> TileChunk.SHIFT)
+                      * ((n_rows + TileChunk.MASK) >> TileChunk.SHIFT);
+      boolean has_seed = ((mapping.flags & FLAG_SEED) != 0);
+      long table_end = HEADER_SIZE + (has_seed ? 8 : 0) + 8 * n_chunks;
+      if(table_end > mapping.size)
+        throw new IOException(file + ": chunk table is truncated");
+      long seed = has_seed ? header.getLong() : TileGrid.DEFAULT_SEED;
+      
+      TileGrid grid = new TileGrid(new V2(n_cols, n_rows), seed);
+      TileStore store = grid.store;
+      
+      // chunk table: chunks with a record are left to be decoded on demand,
+      // but those holding concentrations have to be updated from the start
+      boolean contents = ((mapping.flags & FLAG_CONTENTS) != 0);
+      mapping.offsets = new long[store.n_chunks];
+      mapping.units = new boolean[store.n_chunks];
+      for(int c = 0; c < store.n_chunks; c++)
+      {
+        long entry = header.getLong(), offset = entry & OFFSET_MASK;
+        mapping.offsets[c] = offset;
+        if(offset == 0)
+          continue;
+        if(offset < table_end || offset + record_size > mapping.size)
+          throw new IOException(file + ": chunk " + c + " is truncated");
+        store.putChunk(c, null);
+        mapping.n_pending++;
+        
+        // without the contents, assume the chunk holds everything
+        mapping.units[c] = (!contents || (entry & HAS_UNITS) != 0);
+        for(int t = 0; t < n_types; t++)
+          if(!contents || (entry & (HAS_UNITS << (1 + t))) != 0)
+            store.occupied[t].add(c);
+      }
+      if(mapping.n_pending > 0)
+        store.mapping = mapping;
+      
+      // without the neighbourhood hashes, chunks can't be decoded separately
+      if((mapping.flags & FLAG_NEIGHBOURS) == 0)
+        refreshWalls(store);
+      return grid;
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+  
+  private static void readPlanes(ByteBuffer record, TileStore store, 
+                                 TileChunk chunk, int c, short flags, 
+                                 LevelCodec codec)
+  {
+    record.get(chunk.terrain);
+    if((flags & FLAG_NEIGHBOURS) != 0)
+      for(int l = 0; l < TileChunk.AREA; l++)
+        chunk.terrain_neighbours[l] = record.getShort();
+    for(int t = 0; t < chunk.concentration.length; t++)
+    {
+      // the chunk table has already woken the chunk up if need be
+      float[] plane = chunk.concentration[t];
+      for(int l = 0; l < TileChunk.AREA; l++)
+        plane[l] = codec.getConcentration(record);
+    }
+    
+    // units need a Tile to be created on
+    int first_col = (c % store.n_chunk_cols) << TileChunk.SHIFT,
+        first_row = (c / store.n_chunk_cols) << TileChunk.SHIFT;
+    for(int l = 0; l < TileChunk.AREA; l++)
+    {
+      int type = record.get(), 
+          row = first_row + (l >> TileChunk.SHIFT),
+          col = first_col + (l & TileChunk.MASK);
+      if(type <= 0 || type > UNIT_TYPES.length 
+      || row >= store.n_rows || col >= store.n_cols)
+        continue;
+      Unit u = Unit.fromType(UNIT_TYPES[type - 1], 
+                             store.view(row * store.n_cols + col));
+      if(u != null)
+        store.placeUnit(chunk, l, u);
+    }
+  }
+  
+  private static TileGrid readLegacy(File file) 
+  throws IOException, ClassNotFoundException
+  {
+    // open file
+    ObjectInputStream in = new ObjectInputStream(new FileInputStream(file));
+    try
+    {
+      // recover size and reallocate storage
+      Rect grid_area = (Rect)in.readObject();
+      TileGrid grid 
+        = new TileGrid(new V2((int)grid_area.w + 1, (int)grid_area.h + 1));
+      TileStore store = grid.store;
+
+      // fill storage with values
+      for(int i = 0; i < store.n_tiles; i++)
+        readLegacyTile(in, store);
+      
+      // deduce the neighbourhood hashes, which are not saved
+      refreshWalls(store);
+      return grid;
+    }
+    finally
+    {
+      in.close();
+    }
+  }
+  
+  private static void readLegacyTile(ObjectInputStream in, TileStore store) 
+  throws IOException, ClassNotFoundException
+  {
+    // retrieve grid position and deduce index
+    V2 grid_position = (V2)in.readObject();
+    int i = (int)grid_position.y * store.n_cols + (int)grid_position.x;
+
+    store.setTerrain(i, (byte)((Tile.ETerrain)in.readObject()).ordinal());
+    
+    for(int t = 0; t < Concentration.EType.values().length; t++)
+    {
+      Concentration.EType type = (Concentration.EType)in.readObject();
+      store.setConcentration(type.ordinal(), i, in.readFloat());
+    }
+    
+    // read unit if unit is present to be read
+    if((Boolean)in.readObject()) 
+      store.putUnit(TileChunk.PRESENT, i, Unit.load(store.view(i), in));
+  }
+  
+  private static void refreshWalls(TileStore store)
+  {
+    for(int c = 0; c < store.n_chunks; c++)
+    {
+      if(store.chunkAt(c) == TileChunk.EMPTY)
+        continue;
+      int first_col = (c % store.n_chunk_cols) << TileChunk.SHIFT,
+          first_row = (c / store.n_chunk_cols) << TileChunk.SHIFT;
+      for(int row = first_row; 
+          row < Math.min(store.n_rows, first_row + TileChunk.SIZE); row++)
+      for(int col = first_col; 
+          col < Math.min(store.n_cols, first_col + TileChunk.SIZE); col++)
+        store.refreshTerrainNeighbours(row * store.n_cols + col);
+    }
+  }
+}
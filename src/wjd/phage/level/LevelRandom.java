@@ -0,0 +1,111 @@
+/*
+ Copyright (C) 2013 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.phage.level;
+
+/**
+ * A fast, seedable and splittable pseudo-random generator (SplitMix64). Each
+ * level owns its own generators, so that the same level and the same inputs
+ * always give the same results, whatever else is going on: one stream for
+ * the simulation, another for cosmetic effects that don't affect it.
+ *
+ * @author wdyce
+ * @since Feb 15, 2013
+ */
+public final class LevelRandom
+{
+  /* CONSTANTS */
+  private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+  private static final float FLOAT_UNIT = 1.0f / (1 << 24);
+  private static final double DOUBLE_UNIT = 1.0 / (1L << 53);
+  
+  /* ATTRIBUTES */
+  private long state;
+  
+  /* METHODS */
+  
+  // constructors
+  
+  public LevelRandom(long seed)
+  {
+    state = seed;
+  }
+  
+  // accessors
+  
+  public long nextLong()
+  {
+    return mix(state += GOLDEN_GAMMA);
+  }
+  
+  public int nextInt()
+  {
+    return (int)(nextLong() >>> 32);
+  }
+  
+  /**
+   * @return an integer in [0, bound).
+   */
+  public int nextInt(int bound)
+  {
+    return (int)(((nextLong() >>> 32) * bound) >>> 32);
+  }
+  
+  /**
+   * @return a float in [0, 1).
+   */
+  public float nextFloat()
+  {
+    return (nextLong() >>> 40) * FLOAT_UNIT;
+  }
+  
+  /**
+   * @return a double in [0, 1).
+   */
+  public double nextDouble()
+  {
+    return (nextLong() >>> 11) * DOUBLE_UNIT;
+  }
+  
+  /**
+   * Create a new generator, independent of this one from now on.
+   */
+  public LevelRandom split()
+  {
+    return new LevelRandom(nextLong());
+  }
+  
+  // mutators
+  
+  public LevelRandom setSeed(long seed)
+  {
+    state = seed;
+    return this;
+  }
+  
+  /* CLASS NAMESPACE FUNCTIONS */
+  
+  /**
+   * Scramble a 64-bit value: use this to derive seeds from keys, such as a 
+   * position, without depending on the order in which they are asked for.
+   */
+  public static long mix(long z)
+  {
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+}
@@ -45,6 +45,7 @@ public class LevelScene extends AScene
   
   /* ATTRIBUTES */
   private StrategyCamera camera;
+  private TileRegion visible = new TileRegion();
   public TileGrid tilegrid;
   public FogOfWar fog;
 
@@ -52,6 +53,11 @@ public class LevelScene extends AScene
   
   // constructors
   public LevelScene(EMode mode)
+  {
+    this(mode, GRIDSIZE);
+  }
+  
+  public LevelScene(EMode mode, V2 grid_size)
   {
     // control
     switch(mode)
@@ -65,7 +71,7 @@ public class LevelScene extends AScene
     }
 
     // model
-    tilegrid = new TileGrid(GRIDSIZE).clear();
+    tilegrid = new TileGrid(grid_size).clear();
     fog = new FogOfWar(tilegrid);
 
     // view
@@ -85,9 +91,7 @@ public class LevelScene extends AScene
   public Tile perspectiveToTile(V2 perspective_pos)
   {
     V2 grid_pos = camera.getGlobal(perspective_pos).shrink(Tile.SIZE).floor();
-    return (tilegrid.validGridPos(grid_pos)
-              ? tilegrid.tiles[(int) grid_pos.y][(int) grid_pos.x]
-              : null);
+    return tilegrid.gridToTile(grid_pos);
   }
   
   /* IMPLEMENTS -- SCENE */
@@ -106,13 +110,18 @@ public class LevelScene extends AScene
     
     // find out what cells the camera can see
     canvas.setCamera(camera);
-    TileGrid visible = tilegrid.createSubGrid(camera.getView());
-    canvas.setColour(C_BACKGROUND);
-    canvas.box(visible.getPixelArea(), true);
+    if(tilegrid.getRegion(camera.getView(), visible) != null)
+    {
+      canvas.setColour(C_BACKGROUND);
+      canvas.box(visible.getPixelArea(), true);
 
-    // draw each cell relative to the camera
-    if(visible != null) for(Tile t : visible)
-      t.render(canvas);
+      // draw each cell relative to the camera
+      int width = tilegrid.getWidth();
+      for(int row = visible.min_row; row <= visible.max_row; row++)
+      for(int col = visible.min_col, i = row*width + col; 
+          col <= visible.max_col; col++, i++)
+        tilegrid.getTile(i).render(canvas);
+    }
       
     // render GUI elements
     ((LevelController)controller).render(canvas);
@@ -0,0 +1,228 @@
+/*
+ Copyright (C) 2013 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.phage.level;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Runs the periodic work of a level, which registers here instead of each 
+ * object polling its own Timers every frame. Tasks are kept in a wheel of 
+ * slots, each SLOT_WIDTH ms wide, so that an update only looks at the slots 
+ * it has gone past, and runs everything due there as one batch, in order of 
+ * due time (and of scheduling, for tasks due at the same time).
+ * <p>
+ * Each waiting task has an entry, which follows it from one run to the next
+ * and which cancelling a task blanks out, wherever it is: blank entries are
+ * dropped when their slot comes round, so cancelling costs the same however
+ * many tasks are waiting.
+ * <p>
+ * Times are in ms since the level started, as ints that are only ever 
+ * compared by difference, so they can wrap around safely.
+ *
+ * @author wdyce
+ * @since Feb 19, 2013
+ */
+public final class TickScheduler
+{
+  /* NESTING */
+  
+  public static interface ITask
+  {
+    /**
+     * @return how long until the task should run again, in ms from when it 
+     * was due rather than from now, so that periods don't drift, or STOP.
+     */
+    int run(TickScheduler scheduler);
+  }
+  
+  private static final class Entry
+  {
+    // null once the task has been cancelled
+    ITask task;
+    int due;
+    
+    Entry(ITask task, int due)
+    {
+      this.task = task;
+      this.due = due;
+    }
+  }
+  
+  /* CONSTANTS */
+  
+  /** Returned by tasks that don't need to run again. */
+  public static final int STOP = 0;
+  
+  private static final int SLOT_SHIFT = 4;
+  public static final int SLOT_WIDTH = 1 << SLOT_SHIFT;       // ms
+  // tasks further away than a whole turn of the wheel wait for later turns
+  private static final int N_SLOTS = 256;
+  private static final int SLOT_MASK = N_SLOTS - 1;
+  
+  /* ATTRIBUTES */
+  private int now = 0;
+  // each slot's entries, allocated when first needed
+  private final Entry[][] slots = new Entry[N_SLOTS][];
+  private final int[] size = new int[N_SLOTS];
+  // the entry of each task that is waiting or running
+  private final Map<ITask, Entry> entries = new IdentityHashMap<ITask, Entry>();
+  // the entries to run this update
+  private Entry[] batch = new Entry[16];
+  private int batch_size = 0;
+  
+  /* METHODS */
+  
+  // accessors
+  
+  /**
+   * @return the time in ms since the level started.
+   */
+  public int now()
+  {
+    return now;
+  }
+  
+  // mutators
+  
+  /**
+   * Run a task after a delay, and then again after each delay it returns. 
+   * Tasks are never run more than once per update, so one that falls behind
+   * catches up over the next updates. A task that is already waiting only
+   * waits for the new delay.
+   * 
+   * @param task the work to do.
+   * @param delay how long to wait, in ms.
+   */
+  public void schedule(ITask task, int delay)
+  {
+    Entry entry = new Entry(task, now + delay);
+    blank(entries.put(task, entry));
+    add(entry);
+  }
+  
+  /**
+   * Stop a task from running again, if it is waiting to.
+   */
+  public void cancel(ITask task)
+  {
+    blank(entries.remove(task));
+  }
+  
+  /**
+   * Advance the clock and run every task that has become due.
+   */
+  public void update(int t_delta)
+  {
+    int before = now;
+    now += t_delta;
+    
+    // collect what's due from each slot gone past, the one we stopped in 
+    // last time included, and at most once around the wheel
+    int first = before >> SLOT_SHIFT, last = now >> SLOT_SHIFT;
+    if(last - first >= N_SLOTS)
+      first = last - N_SLOTS + 1;
+    batch_size = 0;
+    for(int s = first; s <= last; s++)
+      collect(s & SLOT_MASK);
+    if(batch_size == 0)
+      return;
+    
+    // run the batch in order: tasks scheduled now go to the next update
+    sortBatch();
+    for(int k = 0; k < batch_size; k++)
+    {
+      Entry entry = batch[k];
+      batch[k] = null;
+      ITask task = entry.task;
+      if(task == null)
+        continue;
+      int period = task.run(this);
+      
+      // the task may have been cancelled or scheduled again as it ran
+      if(entry.task == null)
+        continue;
+      if(period > STOP)
+      {
+        entry.due += period;
+        add(entry);
+      }
+      else
+        cancel(task);
+    }
+    batch_size = 0;
+  }
+  
+  /* SUBROUTINES */
+  
+  private void blank(Entry entry)
+  {
+    if(entry != null)
+      entry.task = null;
+  }
+  
+  private void add(Entry entry)
+  {
+    // anything overdue goes in the current slot, to be run next update
+    int when = entry.due,
+        s = (((when - now < 0) ? now : when) >> SLOT_SHIFT) & SLOT_MASK;
+    if(slots[s] == null)
+      slots[s] = new Entry[4];
+    else if(size[s] == slots[s].length)
+      slots[s] = Arrays.copyOf(slots[s], size[s] * 2);
+    slots[s][size[s]++] = entry;
+  }
+  
+  private void collect(int s)
+  {
+    // move the entries that are due to the batch, keeping the others in 
+    // order, and dropping those that have been cancelled
+    Entry[] slot = slots[s];
+    int kept = 0;
+    for(int k = 0; k < size[s]; k++)
+    {
+      Entry entry = slot[k];
+      if(entry.task == null)
+        continue;
+      if(now - entry.due >= 0)
+      {
+        if(batch_size == batch.length)
+          batch = Arrays.copyOf(batch, batch_size * 2);
+        batch[batch_size++] = entry;
+      }
+      else
+        slot[kept++] = entry;
+    }
+    for(int k = kept; k < size[s]; k++)
+      slot[k] = null;
+    size[s] = kept;
+  }
+  
+  private void sortBatch()
+  {
+    // insertion sort, which is stable and quick on the few tasks due at once
+    for(int k = 1; k < batch_size; k++)
+    {
+      Entry entry = batch[k];
+      int j = k - 1;
+      for(; j >= 0 && batch[j].due - entry.due > 0; j--)
+        batch[j + 1] = batch[j];
+      batch[j + 1] = entry;
+    }
+  }
+}
@@ -16,9 +16,6 @@
  */
 package wjd.phage.level;
 
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import wjd.amb.control.EUpdateResult;
 import wjd.amb.control.IDynamic;
 import wjd.amb.resources.ATextureManager;
@@ -32,6 +29,8 @@ import wjd.math.V2;
 import wjd.phage.unit.Unit;
 
 /**
+ * A lightweight view of one cell of a TileGrid: the state itself is stored in
+ * the grid's TileStore, so a Tile only knows where it is.
  *
  * @author wdyce
  * @since Nov 1, 2012
@@ -49,6 +48,9 @@ public class Tile implements IVisible, IDynamic
   /* NESTING */
   public static enum ETerrain { FLOOR, WALL }
   public static enum EVisibility { UNEXPLORED, UNSEEN, VISIBLE }
+  private static final ETerrain[] TERRAINS = ETerrain.values();
+  private static final Concentration.EType[] CONCENTRATIONS 
+    = Concentration.EType.values();
   
   /* RESOURCES */
   private static Tileset fog, walls;
@@ -57,312 +59,178 @@ public class Tile implements IVisible, IDynamic
     fog = textureManager.getTileset("fog");
     walls = textureManager.getTileset("walls");
   }
+  
+  /* 
+   * Stamps are shared by all Tiles: each Tile moves them into place before 
+   * rendering, which is why the stamps keep a reference to these areas.
+   * Corners are numbered as follows
+   *  0|x-| 1|--| 2|-x| 3|--|
+   *   |--|  |x-|  |--|  |-x|
+   */
+  private static final Rect[] stamp_corners = 
+  {
+    new Rect(HSIZE), new Rect(HSIZE), new Rect(HSIZE), new Rect(HSIZE)
+  };
+  private static final Rect stamp_area = new Rect(SIZE);
+  private static TilesetCanvas[] terrain_stamp = null;
+  private static TilesetCanvas fog_stamp = null;
+  
+  private static void createStamps()
+  {
+    terrain_stamp = new TilesetCanvas[4];
+    for(int i = 0; i < 4; i++)
+      terrain_stamp[i] = new TilesetCanvas(walls, stamp_corners[i]);
+    terrain_stamp[2].setFlip(true);
+    terrain_stamp[3].setFlip(true);
+    
+    fog_stamp = new TilesetCanvas(fog, stamp_area);
+  }
 
   /* ATTRIBUTES */
   public final TileGrid grid;
+  public final int index;
   public final V2 grid_position, pixel_position;
   public final Rect pixel_area;
   
-  private Unit unit = null, unit_inbound = null;
-  private Concentration infection = new ViralConcentration(this);
-  private Concentration antibodies = new AntibodyConcentration(this);
-  
-  // terrain type and type neighbourhood
-  private ETerrain terrain = ETerrain.FLOOR;
-  private byte[] terrain_neighbours = { 4, 4, 4, 4 };
-  private boolean terrain_surrounded = true;
-  private TilesetCanvas[] terrain_stamp = { null, null, null, null};
-  // visibility type and type neighbourhood
-  private EVisibility visibility = EVisibility.UNEXPLORED;
-  private byte visibility_neighbours = 15; // 1 + 2 + 4 + 8
-  private TilesetCanvas fog_stamp;
+  private final TileStore store;
+  // views of this Tile's channels of the ConcentrationField, one per type
+  private final Concentration[] concentrations;
   
   /* METHODS */
   
   // constructors
-  public Tile(int row, int col, ETerrain terrain_, TileGrid grid_)
+  Tile(TileGrid grid_, int index_)
   {
     this.grid = grid_;
+    this.index = index_;
+    this.store = grid_.store;
     
-    grid_position = new V2(col, row);
+    grid_position = new V2(index % store.n_cols, index / store.n_cols);
     pixel_position = grid_position.clone().scale(SIZE);
     pixel_area = new Rect(pixel_position, SIZE);
     
-    // terrain
-    this.terrain = terrain_;
-    /*
-     Corners are numbered as follows
-    0|x-| 1|--| 2|-x| 3|--|
-     |--|  |x-|  |--|  |-x|
-     */
-    Rect[] corners = 
-    {
-      new Rect(pixel_position.x, pixel_position.y, HSIZE.x, HSIZE.y),
-      new Rect(pixel_position.x, pixel_position.y + HSIZE.y, HSIZE.x, HSIZE.y),
-      new Rect(pixel_position.x + HSIZE.x, pixel_position.y, HSIZE.x, HSIZE.y),
-      new Rect(pixel_position.x + HSIZE.x, pixel_position.y + HSIZE.y, HSIZE.x, HSIZE.y)
-    };
-    for(int i = 0; i < 4; i++)
-      terrain_stamp[i] = new TilesetCanvas(walls, corners[i]);
-    terrain_stamp[2].setFlip(true);
-    terrain_stamp[3].setFlip(true);
-    
-    // fog
-    fog_stamp = new TilesetCanvas(fog, pixel_area);
-
-  }
-  
-  public Tile(ObjectInputStream in, TileGrid grid) throws IOException, ClassNotFoundException
-  {
-    this.grid = grid;
-    
-    // retrieve grid position and deduce pixel position and area
-    grid_position = (V2)in.readObject();
-    pixel_position = grid_position.clone().scale(SIZE);
-    pixel_area = new Rect(pixel_position, SIZE).scale(1.1f);
-
-    terrain = (ETerrain)in.readObject();
-    
-    infection = (ViralConcentration)Concentration.load(this, in);
-    antibodies = (AntibodyConcentration)Concentration.load(this, in);
-    
-    // read unit if unit is present to be read
-    if((Boolean)in.readObject()) 
-      unit = Unit.load(this, in);
-    
-    fog_stamp = new TilesetCanvas(fog, pixel_area);
+    Concentration.EType[] types = Concentration.EType.values();
+    concentrations = new Concentration[types.length];
+    for(int t = 0; t < types.length; t++)
+      concentrations[t] = store.concentrations.view(types[t], this);
   }
 
   // accessors
   public Unit getUnit()
   {
-    return (unit != null) ? unit : unit_inbound;
+    Unit unit = store.getUnit(TileChunk.PRESENT, index);
+    return (unit != null) ? unit : store.getUnit(TileChunk.INBOUND, index);
   }
   
   public ETerrain getType()
   {
-    return terrain;
+    return TERRAINS[store.getTerrain(index)];
   }
   
   public boolean isPathable()
   {
-    return (terrain == ETerrain.FLOOR && unit == null && unit_inbound == null);
+    return store.isPathable(index);
   }
   
+  /**
+   * @return a view of this Tile's channel of the grid's ConcentrationField.
+   */
   public Concentration getConcentration(Concentration.EType t)
   {
-    switch(t)
-    {
-      case ANTIBODY:
-        return antibodies;
-          
-      case VIRUS:
-        return infection;
-
-      default:
-        return null;
-    }
+    return concentrations[t.ordinal()];
   }
   
   // mutators
   
-  public void refreshVisibilityNeighbours()
-  {
-   // We'll only consider the 4 sides of the Tile and whether they visible too
-   
-   visibility_neighbours = 0;
-   V2 pos = new V2().reset(grid_position);
-    
-    /*  -x-
-        -X- = 1 (binary 0001)
-        ---                     */
-    
-    pos.y--;
-    if(!grid.validGridPos(pos) || grid.gridToTile(pos).visibility == visibility)
-      visibility_neighbours += 1;
-      
-    /*  ---
-        -Xx = 2 (binary 0010)
-        ---                     */
-    
-    pos.x++; pos.y++;
-    if(!grid.validGridPos(pos) || grid.gridToTile(pos).visibility == visibility)
-      visibility_neighbours += 2;
-    
-    /*  ---
-        -X- = 4 (binary 0100)
-        -x-                     */
-    
-    pos.x--; pos.y++;
-    if(!grid.validGridPos(pos) || grid.gridToTile(pos).visibility == visibility)
-      visibility_neighbours += 4;
-    
-    /*  ---
-        xX- = 8 (binary 1000)
-        ---                     */
-    
-    pos.x--; pos.y--;
-    if(!grid.validGridPos(pos) || grid.gridToTile(pos).visibility == visibility)
-      visibility_neighbours += 8;
-
-    fog_stamp.tile_i = (int)visibility_neighbours;
-  }
-  
-  public void refreshTerrainNeighbours()
-  {
-    /* Each of the 4 corners is given a seperate hash value between 0 and 4. We
-    only pay attention to the corners if the two adjascent sides are equal to
-    the center:
-
-    |--|    |-x|
-    |X-| == |X-| == 0 (binary 00)
-
-    |x-|    |xx|
-    |X-| == |X-| == 1 (binary 01)
-
-    |--|    |-x|
-    |Xx| == |Xx| == 2 (binary 10)
-
-    |xx|
-    |Xx| == 4 (binary 11)
-
-    Corner are evaluated in this order:
-    0|x-| 1|--| 2|-x| 3|--|
-     |--|  |x-|  |--|  |-x|
-    */
-    
-    //terrain_surrounded = false;
-
-    V2 pos = new V2();
-    
-    for(int d_col = -1, corner = 0; d_col < 2; d_col += 2)
-    for(int d_row = -1; d_row < 2; d_row += 2, corner++)
-    {
-      // reset hash
-      terrain_neighbours[corner] = 0;
-      
-      // delta along the vertical axis
-      pos.xy(grid_position.x, grid_position.y + d_row);
-      if(grid.validGridPos(pos) && grid.gridToTile(pos).terrain == terrain)
-        terrain_neighbours[corner] += 1;
-      
-      // delta along the horizontal axis
-      pos.xy(grid_position.x + d_col, grid_position.y);
-      if(grid.validGridPos(pos) && grid.gridToTile(pos).terrain == terrain)
-        terrain_neighbours[corner] += 2;
-      
-      // delta along both axes if both sides are of the same type as the center
-      pos.xy(grid_position.x + d_col, grid_position.y + d_row);
-      if(terrain_neighbours[corner] == 3 
-      && grid.validGridPos(pos) && grid.gridToTile(pos).terrain == terrain)
-        terrain_neighbours[corner] = 4;
-    }
-    
-    // update the view to match the model
-    terrain_surrounded = true;
-    for(int i = 0; i < 4; i++)
-    {
-      terrain_surrounded = (terrain_surrounded && terrain_neighbours[i] == 4);
-      terrain_stamp[i].tile_i = (int)terrain_neighbours[i] + (i%2)*5;
-      //5 columns per row => +1*5 skips a row, +0*5 doesn't skip
-    }
-  }
-  
   public final void setTerrain(ETerrain terrain_)
   {
     // reset the type
-    this.terrain = terrain_;
+    store.setTerrain(index, (byte)terrain_.ordinal());
     if(terrain_ == ETerrain.WALL)
-      unit = null;
+      store.putUnit(TileChunk.PRESENT, index, null);
     if(terrain_ != ETerrain.FLOOR)
-      infection.empty();
+      store.concentrations.set(Concentration.EType.VIRUS, index, 0.0f);
     
-    // recalculate the hash
-    refreshTerrainNeighbours();
-    Iterable<Tile> n = grid.getNeighbours(this, true);
-    for(Tile t : n)
-      t.refreshTerrainNeighbours();
+    // recalculate the hash, ours and our neighbours'
+    store.refreshTerrainNeighbourhood(index);
   }
   
   public final void setVisibility(EVisibility visibility_)
   {
-    this.visibility = visibility_;
-    refreshVisibilityNeighbours();
-    
-    Iterable<Tile> n = grid.getNeighbours(this, true);
-    for(Tile t : n)
-      t.refreshVisibilityNeighbours();
+    store.setVisibility(index, (byte)visibility_.ordinal());
+    store.refreshVisibilityNeighbourhood(index);
   }
   
   public final void setUnit(Unit new_unit)
   {
-    if(unit == null || new_unit == null)
-      unit = new_unit;
+    if(store.getUnitId(TileChunk.PRESENT, index) == 0 || new_unit == null)
+      store.putUnit(TileChunk.PRESENT, index, new_unit);
   }
 
   public final boolean unitStartEnter(Unit u)
   {
     // tile cannot be entered while someone else is present, entering or leaving
-    if(unit != null || unit_inbound != null)
+    if(store.getUnitId(TileChunk.PRESENT, index) != 0 
+    || store.getUnitId(TileChunk.INBOUND, index) != 0)
       return false;
     
     // the supplicant is now the inbound unit
-    unit_inbound = u;
+    store.putUnit(TileChunk.INBOUND, index, u);
     return true;
   }
-  
-  public void save(ObjectOutputStream out) throws IOException 
-  {
-    // don't write pixel position or area, as these can be deduced
-    out.writeObject(grid_position);
-
-    out.writeObject(terrain);
-    
-    infection.save(out);
-    antibodies.save(out);
-  
-    // write a boolean to signify if unit is present or not
-    out.writeObject(unit != null);
-    if(unit != null)
-      unit.save(out);
-    
-    // don't write the grid, or we'll end up with a recursion loop!
-  }
 
   /* OVERRIDES -- IDYNAMIC */
   @Override
   public void render(ICanvas canvas)
   {
+    if(terrain_stamp == null)
+      createStamps();
+    
     // walls
-    if(terrain == ETerrain.WALL)
+    if(store.getTerrain(index) == ETerrain.WALL.ordinal())
     {
-      if(terrain_surrounded)
+      short hash = store.getTerrainNeighbours(index);
+      if(hash == TileStore.TERRAIN_SURROUNDED)
       {
         canvas.setColour(C_WALL);
         canvas.box(pixel_area, true);
       }
       else for(int i = 0; i < 4; i++)
+      {
+        stamp_corners[i].x = pixel_position.x + (i/2)*HSIZE.x;
+        stamp_corners[i].y = pixel_position.y + (i%2)*HSIZE.y;
+        //5 columns per row => +1*5 skips a row, +0*5 doesn't skip
+        terrain_stamp[i].tile_i = ((hash >> (3*i)) & 7) + (i%2)*5;
         terrain_stamp[i].render(canvas);
+      }
     }
     
-    if(visibility == EVisibility.VISIBLE)
+    if(store.getVisibility(index) == EVisibility.VISIBLE.ordinal())
     {
       // units (optional)
+      Unit unit = store.getUnit(TileChunk.PRESENT, index),
+           unit_inbound = store.getUnit(TileChunk.INBOUND, index);
       if (unit != null)
         unit.render(canvas);
       if (unit_inbound != null)
         unit_inbound.render(canvas);
 
-      // infection (optional)
-      infection.render(canvas);
-      antibodies.render(canvas);
+      // infection, antibodies, etc (optional)
+      for(Concentration.EType t : CONCENTRATIONS)
+        store.concentrations.render(canvas, t, this);
     }
     
     // black mask
     else
     {
-      if(visibility_neighbours < 15)
+      byte hash = store.getVisibilityNeighbours(index);
+      if(hash < TileStore.VISIBILITY_SURROUNDED)
+      {
+        stamp_area.x = pixel_position.x;
+        stamp_area.y = pixel_position.y;
+        fog_stamp.tile_i = (int)hash;
         fog_stamp.render(canvas);
+      }
       else
       {
         canvas.setColour(C_FOG);
@@ -375,7 +243,8 @@ public class Tile implements IVisible, IDynamic
   @Override
   public String toString()
   {
-    return terrain + " at " + grid_position + (unit == null ? "" : " contains " + unit);
+    Unit unit = store.getUnit(TileChunk.PRESENT, index);
+    return getType() + " at " + grid_position + (unit == null ? "" : " contains " + unit);
   }
   
   /* IMPLEMENTS -- IDYNAMIC */
@@ -384,22 +253,24 @@ public class Tile implements IVisible, IDynamic
   public EUpdateResult update(int t_delta)
   {
     // update the unit if there is one
+    Unit unit = store.getUnit(TileChunk.PRESENT, index);
     if(unit != null)
     {
       EUpdateResult result = unit.update(t_delta);
       switch(result)
       {
         case DELETE_ME:
-          unit = null;
+          store.putUnit(TileChunk.PRESENT, index, null);
           break;
           
         case REPLACE_ME:
-          unit = unit.getReplacement();
+          store.putUnit(TileChunk.PRESENT, index, unit.getReplacement());
           break;
       }
     }
     
     // update the inbound unit if there is one
+    Unit unit_inbound = store.getUnit(TileChunk.INBOUND, index);
     if(unit_inbound != null)
     {
       EUpdateResult result = unit_inbound.update(t_delta);
@@ -407,20 +278,16 @@ public class Tile implements IVisible, IDynamic
       switch(result)
       {
         case MOVE_ME:
-          unit = unit_inbound;
-          // break left out intentionally
+          store.moveUnit(TileChunk.INBOUND, TileChunk.PRESENT, index);
+          break;
           
         case DELETE_ME:
         case CANCEL:
-          unit_inbound = null;
+          store.putUnit(TileChunk.INBOUND, index, null);
           break;
       }
     }
     
-    // update the concentrations
-    infection.update(t_delta);
-    antibodies.update(t_delta);
-    
     // all clear
     return EUpdateResult.CONTINUE;
   }
@@ -0,0 +1,89 @@
+/*
+ Copyright (C) 2013 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.phage.level;
+
+import java.util.Arrays;
+
+/**
+ * A square block of SIZE x SIZE Tiles' worth of state, stored as primitive
+ * arrays indexed by (local_row << SHIFT) | local_col. Regions of a TileGrid
+ * that have never been touched all share the immutable EMPTY chunk.
+ *
+ * @author wdyce
+ * @since Feb 5, 2013
+ */
+final class TileChunk
+{
+  /* CONSTANTS */
+  static final int SHIFT = 5;
+  static final int SIZE = 1 << SHIFT;
+  static final int MASK = SIZE - 1;
+  static final int AREA = SIZE * SIZE;
+
+  // index of the inbound unit layer, the other being the present unit
+  static final int PRESENT = 0, INBOUND = 1;
+
+  /** Empty floor, shared by every part of every grid that hasn't changed. */
+  static final TileChunk EMPTY = new TileChunk(null);
+
+  /* ATTRIBUTES */
+
+  // terrain type and type neighbourhood
+  final byte[] terrain = new byte[AREA];
+  final short[] terrain_neighbours = new short[AREA];
+  // one plane per Concentration.EType, and the back buffers they are 
+  // swapped with when diffused, allocated the first time they are needed
+  final float[][] concentration, concentration_back;
+  final int[][] particle_seed;
+  // where each Tile's particles are drawn, worked out from its seed and 
+  // allocated the first time the chunk's particles are drawn
+  final float[][] particle_layout;
+  // when each Tile's particles next move, on the level's TickScheduler clock
+  final int[][] particle_due;
+  // ids into the grid's unit table, 0 if there is no unit
+  final int[][] unit = new int[2][AREA];
+  // diffusion weights, which depend on the terrain around each Tile: 1 for
+  // floor, 0 for anything else; then for each type, the fraction of the 
+  // Tile's balance given to each neighbour and the fraction kept, including 
+  // what walls turn back
+  float[] mask_open = null;
+  float[][] mask_share = null, mask_keep = null;
+  boolean masks_dirty = true;
+
+  /* METHODS */
+
+  // constructors
+
+  TileChunk(LevelRandom seeds)
+  {
+    Arrays.fill(terrain, (byte)Tile.ETerrain.FLOOR.ordinal());
+    Arrays.fill(terrain_neighbours, TileStore.TERRAIN_SURROUNDED);
+
+    int n_types = Concentration.EType.values().length;
+    concentration = new float[n_types][AREA];
+    concentration_back = new float[n_types][];
+    particle_seed = new int[n_types][AREA];
+    particle_layout = new float[n_types][];
+    particle_due = new int[n_types][AREA];
+    for(int t = 0; t < n_types; t++)
+    {
+      Arrays.fill(particle_due[t], Concentration.MOVE_PERIOD);
+      if(seeds != null) for(int i = 0; i < AREA; i++)
+        particle_seed[t][i] = seeds.nextInt();
+    }
+  }
+}
@@ -17,39 +17,44 @@
 package wjd.phage.level;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import wjd.amb.control.EUpdateResult;
+import wjd.amb.control.IDynamic;
 import wjd.math.Rect;
 import wjd.math.V2;
+import wjd.phage.unit.Unit;
 
 /**
+ * A grid of Tiles. The Tiles' state is stored in a TileStore, so the Tile
+ * objects returned by the accessors are only lightweight views over it. Only
+ * the parts of the grid that have been modified take up any memory.
  *
  * @author wdyce
  * @since Nov 9, 2012
  */
-public class TileGrid implements Iterable<Tile>
+public class TileGrid implements Iterable<Tile>, IDynamic
 {
+  /* CONSTANTS */
+  public static final long DEFAULT_SEED = 0;
+  
+  /** Side of the square regions over which terrain changes are tracked. */
+  public static final int REGION_SIZE = TileChunk.SIZE;
+  
   /* ATTRIBUTES */
 
-  public final Tile[][] tiles;
+  final TileStore store;
   private final Rect grid_area;
   private final Rect pixel_area;
 
   /* METHODS */
   
   // constructors
-  private TileGrid(Tile[][] tiles, Rect grid_area)
+  private TileGrid(TileStore store, Rect grid_area)
   {
-    this.tiles = tiles;
+    this.store = store;
     this.grid_area = grid_area;
     this.pixel_area 
       = new Rect(grid_area.pos(), grid_area.size().add(1,1)).mult(Tile.SIZE);
@@ -57,25 +62,33 @@ public class TileGrid implements Iterable<Tile>
   
   public TileGrid(V2 size)
   {
-    this(new Tile[(int)size.y][(int)size.x], 
-         new Rect(V2.ORIGIN, size.clone().dinc()).floor());
+    this(size, DEFAULT_SEED);
   }
   
-  public TileGrid(File file) throws IOException, ClassNotFoundException
+  /**
+   * @param size number of columns and rows.
+   * @param seed seed of the level's random streams: the same level with the
+   * same seed will always play out the same way.
+   */
+  public TileGrid(V2 size, long seed)
   {
-    // open file
-    ObjectInputStream in = new ObjectInputStream(new FileInputStream(file));
-    
-    // recover size and reallocate matrix
-    grid_area = (Rect)in.readObject();
-    this.pixel_area 
+    grid_area = new Rect(V2.ORIGIN, size.clone().dinc()).floor();
+    pixel_area 
       = new Rect(grid_area.pos(), grid_area.size().add(1,1)).mult(Tile.SIZE);
-    tiles = new Tile[(int)grid_area.h + 1][(int)grid_area.w + 1];
-    
-    // fill matrix with values
-    for (int row = (int) grid_area.y; row <= (int)(grid_area.endy()); row++)
-      for (int col = (int) grid_area.x; col <= (int) (grid_area.endx()); col++)
-        tiles[row][col] = new Tile(in, this);
+    store = new TileStore(this, (int)size.x, (int)size.y, seed);
+  }
+  
+  /**
+   * Load a level from a file, in the current binary format or the legacy
+   * serialised one.
+   *
+   * @param file the level (LVL) file to read.
+   * @return a new TileGrid containing the level.
+   */
+  public static TileGrid load(File file) 
+  throws IOException, ClassNotFoundException
+  {
+    return LevelFile.read(file);
   }
 
   // mutators
@@ -84,20 +97,109 @@ public class TileGrid implements Iterable<Tile>
    */
   public TileGrid clear()
   {
-    // set all tiles as free
-    for (int row = (int) grid_area.y; row <= (int)(grid_area.endy()); row++)
-      for (int col = (int) grid_area.x; col <= (int) (grid_area.endx()); col++)
-        tiles[row][col] = new Tile(row, col, Tile.ETerrain.FLOOR, this);
+    store.clear();
+    return this;
+  }
+  
+  /**
+   * Set how many threads the concentration updates are split over: the
+   * results are the same whatever the number.
+   */
+  public TileGrid setThreads(int n_threads)
+  {
+    store.executor = new FieldExecutor(n_threads, 
+                                       store.executor.isVectorised());
+    return this;
+  }
+  
+  /**
+   * Choose whether the concentration updates use SIMD instructions, where
+   * the virtual machine supports them: the results are the same either way.
+   */
+  public TileGrid setVectorised(boolean vectorised)
+  {
+    store.executor = new FieldExecutor(store.executor.getThreads(), 
+                                       vectorised);
     return this;
   }
+  
+  /**
+   * Set all the tiles in the grid to the same visibility.
+   */
+  public void setVisibility(Tile.EVisibility visibility)
+  {
+    store.fillVisibility((byte)visibility.ordinal());
+  }
 
   // accessors
   
+  /**
+   * The random stream for anything that affects the outcome of the level:
+   * draw from this rather than from a Random or Math.random, so that runs 
+   * can be replayed.
+   */
+  public LevelRandom getRandom()
+  {
+    return store.simulation;
+  }
+  
+  public long getSeed()
+  {
+    return store.seed;
+  }
+  
+  /**
+   * The concentrations of every type, shared with any sub-grid.
+   */
+  public ConcentrationField getConcentrations()
+  {
+    return store.concentrations;
+  }
+  
+  /**
+   * Periodic work on this level should be scheduled here, rather than 
+   * polling a Timer every update.
+   */
+  public TickScheduler getScheduler()
+  {
+    return store.scheduler;
+  }
+  
+  public int getThreads()
+  {
+    return store.executor.getThreads();
+  }
+  
+  public boolean isVectorised()
+  {
+    return store.executor.isVectorised();
+  }
+  
+  /**
+   * Digest of the state of the simulation (terrain, concentrations and 
+   * units), leaving out cosmetic state such as particles and fog-of-war: two 
+   * runs that give the same checksum have played out identically.
+   */
+  public long checksum()
+  {
+    return store.checksum();
+  }
+  
   public Rect getPixelArea()
   {
     return pixel_area;
   }
   
+  public int getWidth()
+  {
+    return store.n_cols;
+  }
+  
+  public int getHeight()
+  {
+    return store.n_rows;
+  }
+  
   /**
    * Grab the Tile at the specified "pixel" position (x, y).
    *
@@ -108,10 +210,8 @@ public class TileGrid implements Iterable<Tile>
    */
   public Tile pixelToTile(V2 pixel_pos)
   {
-    V2 grid_pos = pixel_pos.clone().scale(Tile.ISIZE).floor();
-    return (validGridPos(grid_pos) 
-            ? tiles[(int)grid_pos.y][(int)grid_pos.x] 
-            : null);
+    return gridToTile((int)Math.floor(pixel_pos.x * Tile.ISIZE.x), 
+                      (int)Math.floor(pixel_pos.y * Tile.ISIZE.y));
   }
   
   /**
@@ -125,10 +225,158 @@ public class TileGrid implements Iterable<Tile>
   public Tile gridToTile(V2 grid_pos)
   {
     return (validGridPos(grid_pos) 
-            ? tiles[(int)grid_pos.y][(int)grid_pos.x] 
+            ? store.view((int)grid_pos.y * store.n_cols + (int)grid_pos.x) 
+            : null);
+  }
+  
+  /**
+   * Grab the Tile at the specified "grid" position (col, row).
+   *
+   * @param col the column of the desired Tile.
+   * @param row the row of the desired Tile.
+   * @return the Tile at the specified position or null if there position is
+   * invalid (outside of the grid).
+   */
+  public Tile gridToTile(int col, int row)
+  {
+    return (validGridPos(col, row) 
+            ? store.view(row * store.n_cols + col) 
             : null);
   }
+  
+  /**
+   * Grab the Tile stored at the specified index (row * width + col).
+   *
+   * @param index the index of the desired Tile, which must be valid.
+   * @return the Tile stored at the specified index.
+   */
+  public Tile getTile(int index)
+  {
+    return store.view(index);
+  }
+  
+  /**
+   * Grab the Unit on the Tile stored at the specified index, without creating
+   * a view of the Tile.
+   *
+   * @param index the index of the Tile to check, which must be valid.
+   * @return the Unit present on, or entering, the Tile or null if there is 
+   * none.
+   */
+  public Unit getUnit(int index)
+  {
+    Unit u = store.getUnit(TileChunk.PRESENT, index);
+    return (u != null) ? u : store.getUnit(TileChunk.INBOUND, index);
+  }
+  
+  /**
+   * @return true if the Unit is present on, or entering, a Tile of this 
+   * grid: false once it has been deleted or replaced.
+   */
+  public boolean contains(Unit u)
+  {
+    return store.contains(u);
+  }
+  
+  /**
+   * Check whether a Unit could move onto a Tile, without creating a view of 
+   * the Tile.
+   *
+   * @param index the index of the Tile to check, which must be valid.
+   * @return true if the Tile is floor with no Unit present or entering.
+   */
+  public boolean isPathable(int index)
+  {
+    return store.isPathable(index);
+  }
+  
+  /**
+   * @return true if the Tile is on the grid and is floor, whether or not 
+   * there is a Unit on it.
+   */
+  public boolean isFloor(int col, int row)
+  {
+    return (validGridPos(col, row) && store.isFloor(col, row));
+  }
+  
+  /**
+   * @return a count of the changes made to the terrain so far: anything 
+   * computed from the terrain is still valid as long as this hasn't changed.
+   */
+  public int getTerrainEpoch()
+  {
+    return store.terrain_epoch;
+  }
+  
+  /**
+   * @return the terrain epoch of the last change made to the terrain in the 
+   * region of REGION_SIZE x REGION_SIZE Tiles containing a Tile, regions 
+   * being aligned on multiples of REGION_SIZE.
+   */
+  public int getTerrainEpoch(int col, int row)
+  {
+    return store.terrain_epochs[store.chunkIndex(row * store.n_cols + col)];
+  }
+  
+  /**
+   * @return a count of the Units put on or taken off Tiles when the last one
+   * was in the region of REGION_SIZE x REGION_SIZE Tiles containing a Tile: 
+   * which Tiles of the region are pathable can only have changed along with
+   * this or its terrain epoch.
+   */
+  public int getOccupancyEpoch(int col, int row)
+  {
+    return store.occupancy_epochs[store.chunkIndex(row * store.n_cols + col)];
+  }
+  
+  /**
+   * Check whether a Unit could move onto a Tile, without creating a view of 
+   * the Tile.
+   *
+   * @return true if the Tile is on the grid and is floor with no Unit present
+   * or entering.
+   */
+  public boolean isPathable(int col, int row)
+  {
+    return (validGridPos(col, row) && store.isPathable(col, row));
+  }
+
+  /**
+   * Find the next Tile that contains a Unit, skipping over the parts of the 
+   * grid that are still empty.
+   *
+   * @param index the index from which to start looking, inclusive.
+   * @return the index of the first Tile at or after the specified index that
+   * contains a Unit, present or inbound, or -1 if there are none.
+   */
+  public int nextUnit(int index)
+  {
+    return store.nextUnit(index);
+  }
 
+  /**
+   * Which cells of the grid are inside the rectangle? Unlike createSubGrid
+   * this allocates nothing, the result being written to the region supplied.
+   *
+   * @param sub_area the pixel rectangle which we want to draw cells from.
+   * @param result the region to reset to the cells inside the rectangle.
+   * @return the region passed as a parameter, or null if the rectangle is 
+   * entirely outside the grid.
+   */
+  public TileRegion getRegion(Rect sub_area, TileRegion result)
+  {
+    int min_col = Math.max((int)(sub_area.x * Tile.ISIZE.x), 0),
+        min_row = Math.max((int)(sub_area.y * Tile.ISIZE.y), 0),
+        max_col = Math.min((int)(sub_area.endx() * Tile.ISIZE.x), 
+                           store.n_cols - 1),
+        max_row = Math.min((int)(sub_area.endy() * Tile.ISIZE.y), 
+                           store.n_rows - 1);
+    
+    return (min_col > max_col || min_row > max_row) 
+            ? null
+            : result.reset(min_col, min_row, max_col, max_row);
+  }
+  
   /**
    * Which cells of the grid are inside the rectangle?
    *
@@ -148,28 +396,21 @@ public class TileGrid implements Iterable<Tile>
     
     // constrain
     sub_grid_area = sub_grid_area.getIntersection(grid_area);
-    return (sub_grid_area == null) ? null : new TileGrid(tiles, sub_grid_area);
+    return (sub_grid_area == null) ? null : new TileGrid(store, sub_grid_area);
   }
 
-  public List<Tile> getNeighbours(Tile tile, boolean diagonals)
+  /**
+   * Which Tiles neighbour the Tile at the specified index?
+   *
+   * @param index the index of the Tile whose neighbours we want.
+   * @param diagonals false for the 4 direct neighbours only, true for the 
+   * whole 3x3 neighbourhood, including the Tile itself.
+   * @return the offsets to add to the index to obtain each neighbour that is
+   * on the grid, in row-by-row order. This table is shared: don't modify it!
+   */
+  public int[] getNeighbourOffsets(int index, boolean diagonals)
   {
-    // local variables
-    V2 pos = new V2();
-    Tile neighbour;
-    LinkedList<Tile> neighbour_list = new LinkedList<Tile>();
-    
-    // add applicable neighbours
-    for(int row = -1; row < 2; row++)
-    for(int col = -1; col < 2; col++)
-    if(diagonals || Math.abs(row + col) == 1) // only the 4 direct neighbours
-    {
-      neighbour = gridToTile(pos.reset(tile.grid_position).add(col, row));
-      if(neighbour != null)
-        neighbour_list.add(neighbour);
-    }
-    
-    // return the result
-    return neighbour_list;
+    return store.neighbourOffsets(index, diagonals);
   }
 
   /**
@@ -182,33 +423,47 @@ public class TileGrid implements Iterable<Tile>
   public boolean validGridPos(V2 grid_pos)
   {
     return (grid_pos.x >= 0 && grid_pos.y >= 0
-            && grid_pos.y < tiles.length && grid_pos.x < tiles[0].length);
+            && grid_pos.y < store.n_rows && grid_pos.x < store.n_cols);
+  }
+  
+  /**
+   * Check if a position is on the grid.
+   *
+   * @param col the column to check.
+   * @param row the row to check.
+   * @return true is the given pair of coordinates is inside the grid, false if
+   * not.
+   */
+  public boolean validGridPos(int col, int row)
+  {
+    return (col >= 0 && row >= 0 && row < store.n_rows && col < store.n_cols);
   }
 
   // externalise
 
   public TileGrid save(File file)
+  {
+    return save(file, LevelCodec.DEFAULT);
+  }
+
+  /**
+   * Save the level to a file.
+   *
+   * @param file the level (LVL) file to write.
+   * @param codec how to compress the file.
+   * @return this TileGrid, for chaining.
+   */
+  public TileGrid save(File file, LevelCodec codec)
   {
     try
     {
-      // open specified file and write the object
-      ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file));
-      out.writeObject(grid_area);
-      for(Tile t : this)
-        t.save(out);
-    }
-    catch (FileNotFoundException ex)
-    {
-      Logger.getLogger(TileGrid.class.getName()).log(Level.SEVERE, null, ex);
+      LevelFile.write(this, file, codec);
     }
     catch (IOException ex)
     {
       Logger.getLogger(TileGrid.class.getName()).log(Level.SEVERE, null, ex);
     }
-    finally
-    {
-      return this;
-    }
+    return this;
   }
 
   /* OVERRIDES -- OBJECT */
@@ -217,7 +472,24 @@ public class TileGrid implements Iterable<Tile>
   {
     return "Tilegrid(" + grid_area + ')';
   }
-
+  
+  /* IMPLEMENTS -- IDYNAMIC */
+  
+  @Override
+  public EUpdateResult update(int t_delta)
+  {
+    // update the Tiles that contain units, and only those
+    for(int i = store.nextUnit(0); i >= 0; i = store.nextUnit(i + 1))
+      store.view(i).update(t_delta);
+    
+    // run the periodic work that has come due, such as the concentration 
+    // updates, which are done a whole plane at a time
+    store.scheduler.update(t_delta);
+    
+    // all clear
+    return EUpdateResult.CONTINUE;
+  }
+  
   /* IMPLEMENTS -- ITERABLE */
   public static class RowByRow implements Iterator<Tile>
   {
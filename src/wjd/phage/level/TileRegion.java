@@ -0,0 +1,87 @@
+/*
+ Copyright (C) 2013 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.phage.level;
+
+import wjd.math.Rect;
+
+/**
+ * A rectangle of Tiles on a TileGrid, delimited by inclusive columns and rows.
+ * Regions are meant to be reset and reused rather than reallocated: iterate 
+ * over them with a plain loop on the rows and columns,
+ * <pre>
+ * for(int row = region.min_row; row <= region.max_row; row++)
+ * for(int col = region.min_col, i = row*width + col; col <= region.max_col; 
+ *     col++, i++)
+ * </pre>
+ *
+ * @author wdyce
+ * @since Feb 8, 2013
+ */
+public class TileRegion
+{
+  /* ATTRIBUTES */
+  public int min_col, min_row, max_col, max_row;
+  private final Rect pixel_area = new Rect();
+  
+  /* METHODS */
+  
+  // accessors
+  
+  public int getWidth()
+  {
+    return max_col - min_col + 1;
+  }
+  
+  public int getHeight()
+  {
+    return max_row - min_row + 1;
+  }
+  
+  public boolean contains(int col, int row)
+  {
+    return (col >= min_col && col <= max_col 
+            && row >= min_row && row <= max_row);
+  }
+  
+  public Rect getPixelArea()
+  {
+    pixel_area.x = min_col * Tile.SIZE.x;
+    pixel_area.y = min_row * Tile.SIZE.y;
+    pixel_area.w = getWidth() * Tile.SIZE.x;
+    pixel_area.h = getHeight() * Tile.SIZE.y;
+    return pixel_area;
+  }
+  
+  // mutators
+  
+  public TileRegion reset(int min_col, int min_row, int max_col, int max_row)
+  {
+    this.min_col = min_col;
+    this.min_row = min_row;
+    this.max_col = max_col;
+    this.max_row = max_row;
+    return this;
+  }
+  
+  /* OVERRIDES -- OBJECT */
+  @Override
+  public String toString()
+  {
+    return "TileRegion(" + min_col + ", " + min_row + " to " 
+            + max_col + ", " + max_row + ')';
+  }
+}
@@ -0,0 +1,626 @@
+/*
+ Copyright (C) 2013 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.phage.level;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import wjd.phage.unit.Unit;
+
+/**
+ * Structure-of-arrays storage behind a TileGrid. Tiles are addressed by their
+ * index, row * n_cols + col, but their state is split into TileChunks which
+ * are only allocated once something is written to them: untouched parts of
+ * the grid all share TileChunk.EMPTY. Visibility is stored separately, as it
+ * changes everywhere all the time, and is uniform per chunk until it isn't.
+ * Tile objects are only lightweight views over all this, created on demand.
+ *
+ * @author wdyce
+ * @since Feb 3, 2013
+ */
+final class TileStore
+{
+  /* CONSTANTS */
+
+  // 4 corner hashes of 3 bits each, all equal to 4 ("surrounded")
+  static final short TERRAIN_SURROUNDED = 4 | 4 << 3 | 4 << 6 | 4 << 9;
+  // 1 + 2 + 4 + 8: all 4 sides have the same visibility as the centre
+  static final byte VISIBILITY_SURROUNDED = 15;
+  // grid edges touched by a Tile, used to select a neighbour offset table
+  private static final int EDGE_LEFT = 1, EDGE_RIGHT = 2,
+                           EDGE_TOP = 4, EDGE_BOTTOM = 8;
+  private static final byte FLOOR = (byte)Tile.ETerrain.FLOOR.ordinal();
+
+  /* ATTRIBUTES */
+
+  final TileGrid grid;
+  final int n_cols, n_rows, n_tiles;
+  final int n_chunk_cols, n_chunk_rows, n_chunks;
+
+  // chunks of terrain, concentration and unit state, row by row, or null for
+  // chunks of a level file that haven't been decoded yet: these can be 
+  // decoded by any of the threads updating the concentrations
+  private final AtomicReferenceArray<TileChunk> chunks;
+  volatile LevelFile.Mapping mapping = null;
+  
+  // the level's random streams, and a generator for new chunks' seeds
+  long seed;
+  final LevelRandom simulation = new LevelRandom(0), 
+                    cosmetic = new LevelRandom(0);
+  private final LevelRandom chunk_seeds = new LevelRandom(0);
+  
+  // runs the concentration updates, and the chunks they concern: those with
+  // any concentration of each type, and those within reach of dispersion
+  FieldExecutor executor = new FieldExecutor(FieldExecutor.DEFAULT_THREADS,
+                                             FieldExecutor.DEFAULT_VECTORISED);
+  final TickScheduler scheduler = new TickScheduler();
+  final ConcentrationField concentrations;
+  // counts terrain changes, and remembers the count at each chunk's last one
+  int terrain_epoch = 0;
+  final int[] terrain_epochs;
+  // the same for Units being put on or taken off Tiles
+  int occupancy_epoch = 0;
+  final int[] occupancy_epochs;
+  final ChunkSet[] occupied;
+  final ChunkSet dispersion_near, dispersion_settling, reacting;
+  final boolean[] dispersion_changed, dispersion_crowded, holding;
+  // visibility type and type neighbourhood, null if uniform over the chunk
+  private final byte[][] visibility, visibility_neighbours;
+  private final byte[] uniform_visibility;
+
+  // unit table, slot 0 is always empty
+  private Unit[] unit_table = new Unit[64];
+  private int[] unit_refs = new int[64];
+  private int[] free_ids = new int[64];
+  private int n_free = 0, next_id = 1;
+
+  // Tile views, created the first time they are asked for
+  private final Tile[][] views;
+
+  // neighbour offset tables, one per combination of grid edges
+  private final int[][] direct_offsets = new int[16][];
+  private final int[][] all_offsets = new int[16][];
+
+  /* METHODS */
+
+  // constructors
+
+  TileStore(TileGrid grid, int n_cols, int n_rows, long seed)
+  {
+    this.grid = grid;
+    this.n_cols = n_cols;
+    this.n_rows = n_rows;
+    this.n_tiles = n_cols * n_rows;
+    this.n_chunk_cols = (n_cols + TileChunk.MASK) >> TileChunk.SHIFT;
+    this.n_chunk_rows = (n_rows + TileChunk.MASK) >> TileChunk.SHIFT;
+
+    this.n_chunks = n_chunk_cols * n_chunk_rows;
+    chunks = new AtomicReferenceArray<TileChunk>(n_chunks);
+    fillChunks();
+    visibility = new byte[n_chunks][];
+    visibility_neighbours = new byte[n_chunks][];
+    uniform_visibility = new byte[n_chunks];
+
+    views = new Tile[n_chunks][];
+    terrain_epochs = new int[n_chunks];
+    occupancy_epochs = new int[n_chunks];
+    concentrations = new ConcentrationField(this, scheduler);
+    occupied = new ChunkSet[Concentration.EType.values().length];
+    for(int t = 0; t < occupied.length; t++)
+      occupied[t] = new ChunkSet(n_chunks);
+    dispersion_near = new ChunkSet(n_chunks);
+    dispersion_settling = new ChunkSet(n_chunks);
+    reacting = new ChunkSet(n_chunks);
+    dispersion_changed = new boolean[n_chunks];
+    dispersion_crowded = new boolean[n_chunks];
+    holding = new boolean[n_chunks];
+    reseed(seed);
+
+    // precompute which neighbours exist depending on which edges are touched
+    for(int edges = 0; edges < 16; edges++)
+    {
+      direct_offsets[edges] = createOffsets(edges, false);
+      all_offsets[edges] = createOffsets(edges, true);
+    }
+  }
+
+  // accessors
+
+  int chunkIndex(int i)
+  {
+    return ((i / n_cols) >> TileChunk.SHIFT) * n_chunk_cols
+            + ((i % n_cols) >> TileChunk.SHIFT);
+  }
+
+  int localIndex(int i)
+  {
+    return (((i / n_cols) & TileChunk.MASK) << TileChunk.SHIFT)
+            | ((i % n_cols) & TileChunk.MASK);
+  }
+
+  TileChunk chunk(int i)
+  {
+    return chunkAt(chunkIndex(i));
+  }
+
+  /**
+   * Grab a chunk by its position in the chunk table, decoding it from the
+   * level file it came from if this is the first time it's asked for.
+   */
+  TileChunk chunkAt(int c)
+  {
+    TileChunk chunk = chunks.get(c);
+    if(chunk != null)
+      return chunk;
+    // the mapping is dropped once another thread has decoded the last chunk
+    LevelFile.Mapping m = mapping;
+    return (m != null) ? m.decode(this, c) : chunks.get(c);
+  }
+  
+  /**
+   * @return a chunk, or null if it is still waiting in the level file.
+   */
+  TileChunk peekChunk(int c)
+  {
+    return chunks.get(c);
+  }
+
+  Tile view(int i)
+  {
+    int c = chunkIndex(i);
+    if(views[c] == null)
+      views[c] = new Tile[TileChunk.AREA];
+    int l = localIndex(i);
+    Tile t = views[c][l];
+    if(t == null)
+      t = views[c][l] = new Tile(grid, i);
+    return t;
+  }
+
+  int[] neighbourOffsets(int i, boolean diagonals)
+  {
+    int col = i % n_cols, row = i / n_cols, edges = 0;
+    if(col == 0)
+      edges |= EDGE_LEFT;
+    if(col == n_cols - 1)
+      edges |= EDGE_RIGHT;
+    if(row == 0)
+      edges |= EDGE_TOP;
+    if(row == n_rows - 1)
+      edges |= EDGE_BOTTOM;
+    return (diagonals ? all_offsets[edges] : direct_offsets[edges]);
+  }
+
+  byte getTerrain(int i)
+  {
+    return chunk(i).terrain[localIndex(i)];
+  }
+
+  short getTerrainNeighbours(int i)
+  {
+    return chunk(i).terrain_neighbours[localIndex(i)];
+  }
+
+  byte getVisibility(int i)
+  {
+    int c = chunkIndex(i);
+    return (visibility[c] == null)
+            ? uniform_visibility[c]
+            : visibility[c][localIndex(i)];
+  }
+
+  byte getVisibilityNeighbours(int i)
+  {
+    int c = chunkIndex(i);
+    return (visibility_neighbours[c] == null)
+            ? VISIBILITY_SURROUNDED
+            : visibility_neighbours[c][localIndex(i)];
+  }
+
+  float getConcentration(int type, int i)
+  {
+    return chunk(i).concentration[type][localIndex(i)];
+  }
+
+
+  int getUnitId(int layer, int i)
+  {
+    return chunk(i).unit[layer][localIndex(i)];
+  }
+
+  boolean isPathable(int i)
+  {
+    return isPathable(i % n_cols, i / n_cols);
+  }
+
+  boolean isFloor(int col, int row)
+  {
+    TileChunk chunk = chunkAt((row >> TileChunk.SHIFT) * n_chunk_cols 
+                              + (col >> TileChunk.SHIFT));
+    return (chunk.terrain[((row & TileChunk.MASK) << TileChunk.SHIFT) 
+                          | (col & TileChunk.MASK)] == FLOOR);
+  }
+
+  boolean isPathable(int col, int row)
+  {
+    TileChunk chunk = chunkAt((row >> TileChunk.SHIFT) * n_chunk_cols 
+                              + (col >> TileChunk.SHIFT));
+    int l = ((row & TileChunk.MASK) << TileChunk.SHIFT) 
+            | (col & TileChunk.MASK);
+    return (chunk.terrain[l] == FLOOR
+            && chunk.unit[TileChunk.PRESENT][l] == 0
+            && chunk.unit[TileChunk.INBOUND][l] == 0);
+  }
+
+  Unit getUnit(int layer, int i)
+  {
+    return unit_table[getUnitId(layer, i)];
+  }
+
+  Unit getUnitById(int id)
+  {
+    return unit_table[id];
+  }
+
+  boolean contains(Unit u)
+  {
+    int id = u.grid_id;
+    return (id > 0 && id < next_id && unit_table[id] == u);
+  }
+
+  long checksum()
+  {
+    long hash = seed;
+    for(int c = 0; c < n_chunks; c++)
+    {
+      TileChunk chunk = chunkAt(c);
+      if(chunk == TileChunk.EMPTY)
+        continue;
+      hash = LevelRandom.mix(hash ^ c);
+      for(int l = 0; l < TileChunk.AREA; l++)
+      {
+        Unit u = unit_table[chunk.unit[TileChunk.PRESENT][l]];
+        hash = hash * 31 + chunk.terrain[l];
+        hash = hash * 31 + (u == null ? -1 : u.getType().ordinal());
+        for(float[] plane : chunk.concentration)
+          hash = hash * 31 + Float.floatToIntBits(plane[l]);
+      }
+    }
+    return LevelRandom.mix(hash);
+  }
+
+  /**
+   * Find the first Tile containing a unit, present or inbound, starting from
+   * the specified index: chunks that are still empty are skipped.
+   *
+   * @return the index of the Tile, or -1 if there are no more units.
+   */
+  int nextUnit(int i)
+  {
+    for(; i < n_tiles; i++)
+    {
+      int row = i / n_cols, col = i % n_cols,
+          c = (row >> TileChunk.SHIFT) * n_chunk_cols + (col >> TileChunk.SHIFT);
+      // chunks still in the level file are only decoded if they hold units
+      TileChunk chunk = chunks.get(c);
+      LevelFile.Mapping m = mapping;
+      if(chunk == null)
+        chunk = (m != null && !m.hasUnits(c)) ? TileChunk.EMPTY : chunkAt(c);
+      if(chunk == TileChunk.EMPTY)
+      {
+        // skip to the last Tile of this chunk on this row
+        i += Math.min(n_cols - col, TileChunk.SIZE - (col & TileChunk.MASK)) - 1;
+        continue;
+      }
+      int l = ((row & TileChunk.MASK) << TileChunk.SHIFT)
+              | (col & TileChunk.MASK);
+      if(chunk.unit[TileChunk.PRESENT][l] != 0
+      || chunk.unit[TileChunk.INBOUND][l] != 0)
+        return i;
+    }
+    return -1;
+  }
+
+  // mutators
+
+  /**
+   * Grab the chunk containing the specified Tile, allocating it if it's still
+   * the shared empty chunk, in order to modify it.
+   */
+  TileChunk writableChunk(int i)
+  {
+    return writableChunkAt(chunkIndex(i));
+  }
+
+  TileChunk writableChunkAt(int c)
+  {
+    TileChunk chunk = chunkAt(c);
+    if(chunk == TileChunk.EMPTY)
+      chunks.set(c, chunk = createChunk(c));
+    return chunk;
+  }
+
+  /**
+   * Create a chunk of empty floor: its particle seeds only depend on the
+   * level's seed and where the chunk is, not on when it was created.
+   */
+  TileChunk createChunk(int c)
+  {
+    return new TileChunk(chunk_seeds.setSeed(
+      LevelRandom.mix(seed + c * 0x9E3779B97F4A7C15L)));
+  }
+
+  /**
+   * Restart the level's random streams.
+   */
+  void reseed(long seed)
+  {
+    this.seed = seed;
+    simulation.setSeed(seed);
+    cosmetic.setSeed(LevelRandom.mix(~seed));
+  }
+
+  /**
+   * Set the contents of a chunk, or mark it as not yet decoded using null.
+   */
+  void putChunk(int c, TileChunk chunk)
+  {
+    chunks.set(c, chunk);
+  }
+  
+  /**
+   * Put a unit on a chunk that is being decoded, and so isn't stored yet.
+   */
+  void placeUnit(TileChunk chunk, int l, Unit u)
+  {
+    chunk.unit[TileChunk.PRESENT][l] = acquire(u);
+  }
+
+  void clear()
+  {
+    // set all tiles as free
+    mapping = null;
+    fillChunks();
+    fillVisibility((byte)Tile.EVisibility.UNEXPLORED.ordinal());
+    reseed(seed);
+    for(ChunkSet set : occupied)
+      set.clear();
+    Arrays.fill(terrain_epochs, ++terrain_epoch);
+    Arrays.fill(occupancy_epochs, ++occupancy_epoch);
+
+    // forget all units
+    Arrays.fill(unit_table, null);
+    Arrays.fill(unit_refs, 0);
+    n_free = 0;
+    next_id = 1;
+  }
+
+  void fillVisibility(byte visibility_)
+  {
+    // every tile now has the same visibility as its neighbours
+    Arrays.fill(visibility, null);
+    Arrays.fill(visibility_neighbours, null);
+    Arrays.fill(uniform_visibility, visibility_);
+  }
+
+  void setTerrain(int i, byte terrain_)
+  {
+    if(getTerrain(i) == terrain_)
+      return;
+    writableChunk(i).terrain[localIndex(i)] = terrain_;
+    terrain_epochs[chunkIndex(i)] = ++terrain_epoch;
+    
+    // the diffusion weights of the surrounding Tiles need recalculating
+    for(int offset : neighbourOffsets(i, true))
+    {
+      TileChunk chunk = chunk(i + offset);
+      if(chunk != TileChunk.EMPTY)
+        chunk.masks_dirty = true;
+    }
+  }
+
+  void setVisibility(int i, byte visibility_)
+  {
+    if(getVisibility(i) != visibility_)
+      writableVisibility(chunkIndex(i))[localIndex(i)] = visibility_;
+  }
+
+  void setConcentration(int type, int i, float value)
+  {
+    if(getConcentration(type, i) == value)
+      return;
+    writableChunk(i).concentration[type][localIndex(i)] = value;
+    
+    // wake the chunk up so that the concentration gets updated
+    if(value != 0.0f)
+      occupied[type].add(chunkIndex(i));
+  }
+
+  void putUnit(int layer, int i, Unit u)
+  {
+    int previous = getUnitId(layer, i);
+    if(u == null && previous == 0)
+      return;
+    writableChunk(i).unit[layer][localIndex(i)]
+      = (u == null) ? 0 : acquire(u);
+    release(previous);
+    occupancy_epochs[chunkIndex(i)] = ++occupancy_epoch;
+  }
+
+  void moveUnit(int from, int to, int i)
+  {
+    int[][] unit = writableChunk(i).unit;
+    int l = localIndex(i);
+    release(unit[to][l]);
+    unit[to][l] = unit[from][l];
+    unit[from][l] = 0;
+  }
+
+  void refreshTerrainNeighbourhood(int i)
+  {
+    for(int offset : neighbourOffsets(i, true))
+      refreshTerrainNeighbours(i + offset);
+  }
+
+  void refreshVisibilityNeighbourhood(int i)
+  {
+    for(int offset : neighbourOffsets(i, true))
+      refreshVisibilityNeighbours(i + offset);
+  }
+
+  void refreshTerrainNeighbours(int i)
+  {
+    /* Corners are evaluated in this order, the edges of the grid never count
+    as being of the same type as the centre:
+    0|x-| 1|--| 2|-x| 3|--|
+     |--|  |x-|  |--|  |-x|
+    */
+    int col = i % n_cols, row = i / n_cols;
+    byte centre = getTerrain(i);
+    short hash = 0;
+
+    // only walls are drawn using the hash, so don't bother with floors
+    if(centre == Tile.ETerrain.FLOOR.ordinal())
+      return;
+
+    for(int d_col = -1, corner = 0; d_col < 2; d_col += 2)
+    for(int d_row = -1; d_row < 2; d_row += 2, corner++)
+    {
+      int corner_hash = 0;
+      boolean row_ok = (row + d_row >= 0 && row + d_row < n_rows),
+              col_ok = (col + d_col >= 0 && col + d_col < n_cols);
+
+      // delta along the vertical axis
+      if(row_ok && getTerrain(i + d_row*n_cols) == centre)
+        corner_hash += 1;
+
+      // delta along the horizontal axis
+      if(col_ok && getTerrain(i + d_col) == centre)
+        corner_hash += 2;
+
+      // delta along both axes if both sides are of the same type as the center
+      if(corner_hash == 3 && getTerrain(i + d_row*n_cols + d_col) == centre)
+        corner_hash = 4;
+
+      hash |= corner_hash << (3*corner);
+    }
+
+    if(getTerrainNeighbours(i) != hash)
+      writableChunk(i).terrain_neighbours[localIndex(i)] = hash;
+  }
+
+  void refreshVisibilityNeighbours(int i)
+  {
+    // the edges of the grid always count as having the same visibility
+    int col = i % n_cols, row = i / n_cols;
+    byte centre = getVisibility(i), hash = 0;
+
+    if(row == 0 || getVisibility(i - n_cols) == centre)
+      hash += 1;
+    if(col == n_cols - 1 || getVisibility(i + 1) == centre)
+      hash += 2;
+    if(row == n_rows - 1 || getVisibility(i + n_cols) == centre)
+      hash += 4;
+    if(col == 0 || getVisibility(i - 1) == centre)
+      hash += 8;
+
+    if(getVisibilityNeighbours(i) != hash)
+    {
+      int c = chunkIndex(i);
+      writableVisibility(c);
+      visibility_neighbours[c][localIndex(i)] = hash;
+    }
+  }
+
+  /* SUBROUTINES */
+
+  private void fillChunks()
+  {
+    for(int c = 0; c < n_chunks; c++)
+      chunks.set(c, TileChunk.EMPTY);
+  }
+
+  private byte[] writableVisibility(int c)
+  {
+    // stop treating the chunk as uniform
+    if(visibility[c] == null)
+    {
+      visibility[c] = new byte[TileChunk.AREA];
+      Arrays.fill(visibility[c], uniform_visibility[c]);
+      visibility_neighbours[c] = new byte[TileChunk.AREA];
+      Arrays.fill(visibility_neighbours[c], VISIBILITY_SURROUNDED);
+    }
+    return visibility[c];
+  }
+
+  private int[] createOffsets(int edges, boolean diagonals)
+  {
+    int[] offsets = new int[9];
+    int n = 0;
+
+    // same order as a row-by-row scan of the 3x3 neighbourhood
+    for(int row = -1; row < 2; row++)
+    for(int col = -1; col < 2; col++)
+    if(diagonals || Math.abs(row + col) == 1) // only the 4 direct neighbours
+    {
+      if((col < 0 && (edges & EDGE_LEFT) != 0)
+      || (col > 0 && (edges & EDGE_RIGHT) != 0)
+      || (row < 0 && (edges & EDGE_TOP) != 0)
+      || (row > 0 && (edges & EDGE_BOTTOM) != 0))
+        continue;
+      offsets[n++] = row*n_cols + col;
+    }
+    return Arrays.copyOf(offsets, n);
+  }
+
+  private int acquire(Unit u)
+  {
+    int id = u.grid_id;
+
+    // allocate a new slot if the unit isn't in this table yet
+    if(id <= 0 || id >= next_id || unit_table[id] != u)
+    {
+      if(n_free > 0)
+        id = free_ids[--n_free];
+      else
+      {
+        id = next_id++;
+        if(id == unit_table.length)
+        {
+          unit_table = Arrays.copyOf(unit_table, id*2);
+          unit_refs = Arrays.copyOf(unit_refs, id*2);
+        }
+      }
+      unit_table[id] = u;
+      u.grid_id = id;
+    }
+
+    unit_refs[id]++;
+    return id;
+  }
+
+  private void release(int id)
+  {
+    if(id == 0 || --unit_refs[id] > 0)
+      return;
+
+    // nobody refers to this unit anymore: recycle the slot
+    unit_table[id] = null;
+    if(n_free == free_ids.length)
+      free_ids = Arrays.copyOf(free_ids, n_free*2);
+    free_ids[n_free++] = id;
+  }
+}
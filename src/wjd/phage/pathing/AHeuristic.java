@@ -16,8 +16,6 @@
  */
 package wjd.phage.pathing;
 
-import wjd.math.V2;
-
 /**
  *
  * @author wdyce
@@ -26,14 +24,20 @@ import wjd.math.V2;
 abstract class AHeuristic
 {
   /* INTERFACE */
-  public abstract int estimate(V2 start, V2 end);
+  
+  /**
+   * @param d_col difference in columns between the two Tiles.
+   * @param d_row difference in rows between the two Tiles.
+   * @return an estimate of the cost of going from one to the other.
+   */
+  public abstract int estimate(int d_col, int d_row);
 
   /* IMPLEMENTATIONS */
     
   public static final AHeuristic NONE = new AHeuristic()
   {
     @Override
-    public int estimate(V2 start, V2 end)
+    public int estimate(int d_col, int d_row)
     {
       return 0;
     }
@@ -42,20 +46,18 @@ abstract class AHeuristic
   public static final AHeuristic EUCLIEAN = new AHeuristic()
   {
     @Override
-    public int estimate(V2 start, V2 end)
+    public int estimate(int d_col, int d_row)
     {
-      return 
-        (int)new V2(start, end).norm();
+      return (int)Math.sqrt(d_col*d_col + d_row*d_row);
     }
   };
   
   public static final AHeuristic MANHATTAN = new AHeuristic()
   {
     @Override
-    public int estimate(V2 start, V2 end)
+    public int estimate(int d_col, int d_row)
     {
-      V2 s = start, e = end;
-      return (int)(Math.abs(s.x - e.x) + Math.abs(s.y - e.y));
+      return Math.abs(d_col) + Math.abs(d_row);
     }
   };
 }
@@ -0,0 +1,228 @@
+/*
+ Copyright (C) 2013 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.phage.pathing;
+
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import wjd.phage.level.Tile;
+import wjd.phage.level.TileGrid;
+
+/**
+ * The distance from every Tile of the grid to a destination, computed once 
+ * by a breadth-first wave out from it and shared by every Unit ordered to 
+ * go there: each one then only has to walk downhill, rather than search.
+ * <p>
+ * Fields are shared by reference count: acquire one for a destination, 
+ * retain it for each user, and release each reference once done with it.
+ * The distances only consider terrain, and are recomputed the next time 
+ * they are needed after the terrain changes; Units are avoided when walking 
+ * downhill, by choosing between equally short ways when there are some.
+ *
+ * @author wdyce
+ * @since Feb 19, 2013
+ */
+public final class FlowField
+{
+  /* CONSTANTS */
+  private static final int UNREACHABLE = -1;
+  private static final int[] D_COL = { 0, -1, 1, 0 }, D_ROW = { -1, 0, 0, 1 };
+  
+  /* CLASS ATTRIBUTES */
+  
+  // fields in use on each grid, by destination
+  private static final Map<TileGrid, Map<Integer, FlowField>> fields
+    = new WeakHashMap<TileGrid, Map<Integer, FlowField>>();
+  
+  /* CLASS NAMESPACE FUNCTIONS */
+  
+  /**
+   * @return the field leading to a destination, shared with whoever else is 
+   * using one, with a reference to it that must eventually be released.
+   */
+  public static FlowField acquire(Tile destination)
+  {
+    synchronized(fields)
+    {
+      Map<Integer, FlowField> grid_fields = fields.get(destination.grid);
+      if(grid_fields == null)
+      {
+        grid_fields = new HashMap<Integer, FlowField>();
+        fields.put(destination.grid, grid_fields);
+      }
+      FlowField field = grid_fields.get(destination.index);
+      if(field == null)
+      {
+        field = new FlowField(destination);
+        grid_fields.put(destination.index, field);
+      }
+      field.n_references++;
+      return field;
+    }
+  }
+  
+  /* ATTRIBUTES */
+  private final TileGrid grid;
+  private final int destination, n_cols, n_rows;
+  // steps from each Tile to the destination, valid for one terrain epoch
+  private final int[] distance;
+  private int epoch;
+  private int n_references = 0;
+  
+  /* METHODS */
+  
+  // constructors
+  
+  private FlowField(Tile destination_)
+  {
+    this.grid = destination_.grid;
+    this.destination = destination_.index;
+    this.n_cols = grid.getWidth();
+    this.n_rows = grid.getHeight();
+    this.distance = new int[n_cols * n_rows];
+    this.epoch = grid.getTerrainEpoch() - 1;
+  }
+  
+  // accessors
+  
+  public Tile getDestination()
+  {
+    return grid.getTile(destination);
+  }
+  
+  /**
+   * @return the number of steps from a Tile to the destination, ignoring 
+   * Units, or -1 if it can't be reached.
+   */
+  public synchronized int getDistance(Tile from)
+  {
+    refresh();
+    return distance[from.index];
+  }
+  
+  /**
+   * @return true if the destination can be reached from a Tile, ignoring 
+   * Units.
+   */
+  public boolean reaches(Tile from)
+  {
+    return (getDistance(from) != UNREACHABLE);
+  }
+  
+  /**
+   * Walk downhill to the destination, stepping around Units where there is 
+   * another way that is just as short.
+   * 
+   * @return false, leaving the path empty, if the destination can't be 
+   * reached.
+   */
+  public synchronized boolean writePath(Tile from, Deque<Tile> result)
+  {
+    refresh();
+    result.clear();
+    int i = from.index;
+    if(distance[i] == UNREACHABLE)
+      return false;
+    while(i != destination)
+    {
+      int col = i % n_cols, row = i / n_cols, next = UNREACHABLE;
+      for(int n = 0; n < 4; n++)
+      {
+        int n_col = col + D_COL[n], n_row = row + D_ROW[n], 
+            n_i = n_row * n_cols + n_col;
+        if(grid.validGridPos(n_col, n_row) 
+        && distance[n_i] == distance[i] - 1)
+        {
+          next = n_i;
+          if(n_i == destination || grid.isPathable(n_i))
+            break;
+        }
+      }
+      result.addLast(grid.getTile(next));
+      i = next;
+    }
+    return true;
+  }
+  
+  // mutators
+  
+  /**
+   * Take another reference to a field already acquired.
+   */
+  public FlowField retain()
+  {
+    synchronized(fields)
+    {
+      n_references++;
+      return this;
+    }
+  }
+  
+  /**
+   * Let go of a reference: the field is forgotten with the last one.
+   */
+  public void release()
+  {
+    synchronized(fields)
+    {
+      if(--n_references > 0)
+        return;
+      Map<Integer, FlowField> grid_fields = fields.get(grid);
+      if(grid_fields != null && grid_fields.get(destination) == this)
+        grid_fields.remove(destination);
+    }
+  }
+  
+  /* SUBROUTINES */
+  
+  /**
+   * Send a wave out from the destination if the terrain has changed since 
+   * the last one.
+   */
+  private void refresh()
+  {
+    int grid_epoch = grid.getTerrainEpoch();
+    if(grid_epoch == epoch)
+      return;
+    epoch = grid_epoch;
+    
+    // nothing leads into a wall
+    Arrays.fill(distance, UNREACHABLE);
+    if(!grid.isFloor(destination % n_cols, destination / n_cols))
+      return;
+    int[] queue = new int[distance.length];
+    int head = 0, tail = 0;
+    distance[destination] = 0;
+    queue[tail++] = destination;
+    while(head < tail)
+    {
+      int i = queue[head++], col = i % n_cols, row = i / n_cols;
+      for(int n = 0; n < 4; n++)
+      {
+        int n_col = col + D_COL[n], n_row = row + D_ROW[n], 
+            n_i = n_row * n_cols + n_col;
+        if(grid.isFloor(n_col, n_row) && distance[n_i] == UNREACHABLE)
+        {
+          distance[n_i] = distance[i] + 1;
+          queue[tail++] = n_i;
+        }
+      }
+    }
+  }
+}
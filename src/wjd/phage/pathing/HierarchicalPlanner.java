@@ -0,0 +1,558 @@
+/*
+ Copyright (C) 2013 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.phage.pathing;
+
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Map;
+import java.util.WeakHashMap;
+import wjd.phage.level.Tile;
+import wjd.phage.level.TileGrid;
+
+/**
+ * Plans long paths in two steps: first across a graph of the entrances 
+ * between square clusters of Tiles, then Tile by Tile from one entrance to 
+ * the next, a leg at a time, as the Unit gets there. Each cluster keeps the 
+ * distances between its entrances, so the first step is a search over a 
+ * few hundred nodes instead of the whole grid, and only the clusters whose 
+ * terrain has changed are rebuilt.
+ * <p>
+ * The abstract graph only considers terrain, since Units will have moved by 
+ * the time they matter: each leg is a PathSearch, which goes around them,
+ * unless a Unit has searched for the same leg since the terrain last changed 
+ * and the PathCache still has it.
+ * Paths are close to optimal but not always optimal, since they go through 
+ * a handful of entrances on each border, so searches within a cluster or 
+ * between neighbouring ones are left to PathSearch altogether.
+ *
+ * @author wdyce
+ * @since Feb 19, 2013
+ */
+public final class HierarchicalPlanner
+{
+  /* CONSTANTS */
+  
+  /** Side of each cluster, aligned on the regions of terrain epochs. */
+  public static final int CLUSTER_SIZE = TileGrid.REGION_SIZE;
+  // open runs along a border this long or longer get an entrance at each end
+  private static final int WIDE_ENTRANCE = 6;
+  private static final int NONE = -1;
+  
+  /* NESTING */
+  
+  /**
+   * The entrances a path goes through, to be refined into Tiles a leg at a 
+   * time.
+   */
+  public static final class Plan
+  {
+    private final TileGrid grid;
+    // the Tile by which each cluster is entered, and the destination
+    private final int[] waypoints;
+    private final int epoch;
+    private int next = 0;
+    
+    private Plan(TileGrid grid_, int[] waypoints_)
+    {
+      this.grid = grid_;
+      this.waypoints = waypoints_;
+      this.epoch = grid_.getTerrainEpoch();
+    }
+    
+    /**
+     * @return true if the terrain has changed since the plan was made, so 
+     * that it should be made again.
+     */
+    public boolean isStale()
+    {
+      return (epoch != grid.getTerrainEpoch());
+    }
+    
+    /**
+     * @return the number of legs of the plan not yet refined.
+     */
+    public int getLegsLeft()
+    {
+      return waypoints.length - next;
+    }
+    
+    /**
+     * @return the next waypoint, skipping those of the cluster we're already 
+     * in, however we got into it, or null if the destination has already been 
+     * reached.
+     */
+    public Tile getNextWaypoint(Tile from)
+    {
+      while(next < waypoints.length 
+      && (waypoints[next] == from.index 
+          || (next < waypoints.length - 1 
+              && isSameCluster(waypoints[next], from.index))))
+        next++;
+      return (next < waypoints.length) ? grid.getTile(waypoints[next]) : null;
+    }
+    
+    private boolean isSameCluster(int a, int b)
+    {
+      int n_cols = grid.getWidth();
+      return ((a % n_cols) / CLUSTER_SIZE == (b % n_cols) / CLUSTER_SIZE
+              && (a / n_cols) / CLUSTER_SIZE == (b / n_cols) / CLUSTER_SIZE);
+    }
+    
+    /**
+     * Search for a path to the next waypoint. A leg that doesn't make it all 
+     * the way is searched again next time, from wherever the Unit ended up.
+     * 
+     * @return false if the destination has already been reached.
+     */
+    public boolean writeNextLeg(Tile from, Deque<Tile> result)
+    {
+      Tile waypoint = getNextWaypoint(from);
+      if(waypoint == null)
+      {
+        result.clear();
+        return false;
+      }
+      PathCache.get(grid).writePath(from, waypoint, result);
+      return true;
+    }
+  }
+  
+  /* CLASS ATTRIBUTES */
+  
+  // one planner per grid, forgotten along with the grid
+  private static final Map<TileGrid, HierarchicalPlanner> planners
+    = new WeakHashMap<TileGrid, HierarchicalPlanner>();
+  
+  /* CLASS NAMESPACE FUNCTIONS */
+  
+  public static synchronized HierarchicalPlanner get(TileGrid grid)
+  {
+    HierarchicalPlanner planner = planners.get(grid);
+    if(planner == null)
+    {
+      planner = new HierarchicalPlanner(grid);
+      planners.put(grid, planner);
+    }
+    return planner;
+  }
+  
+  /* ATTRIBUTES */
+  private final TileGrid grid;
+  private final int n_cols, n_rows, n_cluster_cols, n_cluster_rows;
+  // terrain epoch of the grid, and of each cluster, when last rebuilt
+  private int epoch = NONE;
+  private final int[] cluster_epochs;
+  // (inside, outside) pairs of Tiles across the east and south border of 
+  // each cluster
+  private final int[][] east, south;
+  // the Tiles of each cluster that lead to another, those they lead to, and 
+  // the distance from each to each of the others or NONE
+  private final int[][] nodes, distances;
+  private final int[][][] partners;
+  // position of each Tile in its cluster's nodes, or NONE
+  private final int[] slot;
+  // distances from the start and to the destination of a plan
+  private int[] start_distances = new int[0], end_distances = new int[0];
+  // working memory of breadth-first searches inside a cluster
+  private final int[] queue = new int[CLUSTER_SIZE * CLUSTER_SIZE],
+                      steps = new int[CLUSTER_SIZE * CLUSTER_SIZE];
+  private final SearchSpace space = new SearchSpace();
+  private int n_expanded = 0;
+
+  /* METHODS */
+  
+  // constructors
+  
+  private HierarchicalPlanner(TileGrid grid_)
+  {
+    this.grid = grid_;
+    this.n_cols = grid.getWidth();
+    this.n_rows = grid.getHeight();
+    this.n_cluster_cols = (n_cols + CLUSTER_SIZE - 1) / CLUSTER_SIZE;
+    this.n_cluster_rows = (n_rows + CLUSTER_SIZE - 1) / CLUSTER_SIZE;
+    
+    int n_clusters = n_cluster_cols * n_cluster_rows;
+    cluster_epochs = new int[n_clusters];
+    Arrays.fill(cluster_epochs, NONE);
+    east = new int[n_clusters][0];
+    south = new int[n_clusters][0];
+    nodes = new int[n_clusters][0];
+    distances = new int[n_clusters][0];
+    partners = new int[n_clusters][0][];
+    slot = new int[n_cols * n_rows];
+    Arrays.fill(slot, NONE);
+  }
+  
+  // accessors
+  
+  /**
+   * @return the number of nodes of the abstract graph expanded by the last 
+   * plan.
+   */
+  public synchronized int getExpanded()
+  {
+    return n_expanded;
+  }
+  
+  /**
+   * @return the number of entrances between clusters, counting each side of
+   * each entrance.
+   */
+  public synchronized int getNodeCount()
+  {
+    refresh();
+    int n_nodes = 0;
+    for(int[] cluster_nodes : nodes)
+      n_nodes += cluster_nodes.length;
+    return n_nodes;
+  }
+  
+  // mutators
+  
+  /**
+   * Plan a path across the grid, rebuilding the clusters whose terrain has 
+   * changed since the last plan first. If the destination can't be reached 
+   * through the entrances, or is close enough that they don't help, the plan 
+   * is a single leg straight to it.
+   */
+  public synchronized Plan plan(Tile start_tile, Tile end_tile)
+  {
+    refresh();
+    n_expanded = 0;
+    int start = start_tile.index, end = end_tile.index,
+        start_cluster = clusterOf(start), end_cluster = clusterOf(end);
+    
+    // neighbouring clusters are left to PathSearch
+    if(Math.abs(start_cluster % n_cluster_cols - end_cluster % n_cluster_cols)
+      + Math.abs(start_cluster / n_cluster_cols - end_cluster / n_cluster_cols)
+      <= 1)
+      return new Plan(grid, new int[] { end });
+    
+    // connect the start and the destination to their clusters' entrances
+    start_distances = flood(start_cluster, start, start_distances);
+    end_distances = flood(end_cluster, end, end_distances);
+    
+    if(!search(start, end, start_cluster, end_cluster))
+      return new Plan(grid, new int[] { end });
+    
+    // keep the Tile by which each cluster is entered, and the destination
+    int n_waypoints = 0;
+    for(int i = end; i != start; i = space.parent(i))
+      if(i == end || clusterOf(i) != clusterOf(space.parent(i)))
+        n_waypoints++;
+    int[] waypoints = new int[n_waypoints];
+    for(int i = end; i != start; i = space.parent(i))
+      if(i == end || clusterOf(i) != clusterOf(space.parent(i)))
+        waypoints[--n_waypoints] = i;
+    return new Plan(grid, waypoints);
+  }
+  
+  /* SUBROUTINES */
+  
+  private int clusterOf(int i)
+  {
+    return (i / n_cols / CLUSTER_SIZE) * n_cluster_cols 
+            + (i % n_cols) / CLUSTER_SIZE;
+  }
+  
+  private int estimateCost(int i, int end)
+  {
+    return AHeuristic.MANHATTAN.estimate(i % n_cols - end % n_cols, 
+                                          i / n_cols - end / n_cols);
+  }
+  
+  /**
+   * A* over the entrances, from the start to the destination.
+   * 
+   * @return true if the destination was reached.
+   */
+  private boolean search(int start, int end, int start_cluster, 
+                         int end_cluster)
+  {
+    space.begin(n_cols * n_rows);
+    space.open(start, start, 0, estimateCost(start, end));
+    while(!space.open.isEmpty())
+    {
+      int x = space.open.pop();
+      if(x == end)
+        return true;
+      n_expanded++;
+      
+      // the start leads to the entrances of its cluster
+      if(x == start)
+      {
+        int[] cluster_nodes = nodes[start_cluster];
+        for(int j = 0; j < cluster_nodes.length; j++)
+          if(start_distances[j] != NONE)
+            relax(x, cluster_nodes[j], start_distances[j], end);
+      }
+      
+      // entrances lead to the others of their cluster, across their border, 
+      // and to the destination if it's in their cluster
+      int s = slot[x];
+      if(s != NONE)
+      {
+        int c = clusterOf(x);
+        int[] cluster_nodes = nodes[c], cluster_distances = distances[c];
+        for(int j = 0, k = s * cluster_nodes.length; 
+            j < cluster_nodes.length; j++, k++)
+          if(cluster_distances[k] > 0)
+            relax(x, cluster_nodes[j], cluster_distances[k], end);
+        for(int p : partners[c][s])
+          relax(x, p, 1, end);
+        if(c == end_cluster && end_distances[s] != NONE)
+          relax(x, end, end_distances[s], end);
+      }
+      
+      space.close(x);
+    }
+    return false;
+  }
+  
+  private void relax(int x, int t, int step_cost, int end)
+  {
+    if(space.isClosed(t))
+      return;
+    int t_cost = space.cost(x) + step_cost;
+    if(!space.isOpen(t) || t_cost < space.cost(t))
+      space.open(t, x, t_cost, estimateCost(t, end));
+  }
+  
+  /**
+   * Rebuild the clusters whose terrain has changed, the borders around them 
+   * and their neighbours' distances.
+   */
+  private void refresh()
+  {
+    int grid_epoch = grid.getTerrainEpoch();
+    if(grid_epoch == epoch)
+      return;
+    epoch = grid_epoch;
+    
+    // find the clusters that have changed
+    boolean[] dirty = new boolean[cluster_epochs.length], 
+              affected = new boolean[cluster_epochs.length];
+    boolean any = false;
+    for(int c = 0; c < cluster_epochs.length; c++)
+    {
+      int c_epoch = grid.getTerrainEpoch((c % n_cluster_cols) * CLUSTER_SIZE, 
+                                          (c / n_cluster_cols) * CLUSTER_SIZE);
+      if(c_epoch != cluster_epochs[c])
+      {
+        cluster_epochs[c] = c_epoch;
+        dirty[c] = any = true;
+      }
+    }
+    if(!any)
+      return;
+    
+    // rebuild their borders, which are shared with their neighbours
+    for(int c = 0; c < dirty.length; c++) if(dirty[c])
+    {
+      int c_col = c % n_cluster_cols, c_row = c / n_cluster_cols;
+      affected[c] = true;
+      buildBorders(c);
+      if(c_col > 0)
+        buildBorders(c - 1);
+      if(c_row > 0)
+        buildBorders(c - n_cluster_cols);
+      if(c_col > 0)
+        affected[c - 1] = true;
+      if(c_col < n_cluster_cols - 1)
+        affected[c + 1] = true;
+      if(c_row > 0)
+        affected[c - n_cluster_cols] = true;
+      if(c_row < n_cluster_rows - 1)
+        affected[c + n_cluster_cols] = true;
+    }
+    
+    // then the entrances and distances of everything touching those borders
+    for(int c = 0; c < affected.length; c++) if(affected[c])
+      buildNodes(c);
+  }
+  
+  /**
+   * Find the entrances across the east and south borders of a cluster.
+   */
+  private void buildBorders(int c)
+  {
+    int min_col = (c % n_cluster_cols) * CLUSTER_SIZE,
+        min_row = (c / n_cluster_cols) * CLUSTER_SIZE,
+        max_col = Math.min(n_cols, min_col + CLUSTER_SIZE) - 1,
+        max_row = Math.min(n_rows, min_row + CLUSTER_SIZE) - 1;
+    east[c] = (max_col + 1 < n_cols) 
+      ? buildBorder(max_col, min_row, 0, 1, max_row - min_row + 1, 1, 0) 
+      : new int[0];
+    south[c] = (max_row + 1 < n_rows) 
+      ? buildBorder(min_col, max_row, 1, 0, max_col - min_col + 1, 0, 1) 
+      : new int[0];
+  }
+  
+  /**
+   * Walk along one side of a border, from (col, row) in steps of 
+   * (d_col, d_row), looking for Tiles that are open on both sides of it.
+   * 
+   * @return (inside, outside) pairs of Tiles, at the middle of each short 
+   * open run and at both ends of each long one.
+   */
+  private int[] buildBorder(int col, int row, int d_col, int d_row, 
+                            int length, int across_col, int across_row)
+  {
+    int[] pairs = new int[4 * length];
+    int n_pairs = 0, run_start = NONE;
+    for(int k = 0; k <= length; k++)
+    {
+      int c = col + k*d_col, r = row + k*d_row;
+      boolean open = (k < length && grid.isFloor(c, r) 
+                      && grid.isFloor(c + across_col, r + across_row));
+      if(open && run_start == NONE)
+        run_start = k;
+      else if(!open && run_start != NONE)
+      {
+        int run_end = k - 1;
+        if(run_end - run_start + 1 < WIDE_ENTRANCE)
+          n_pairs = addPair(pairs, n_pairs, col, row, d_col, d_row, 
+                      (run_start + run_end) / 2, across_col, across_row);
+        else
+        {
+          n_pairs = addPair(pairs, n_pairs, col, row, d_col, d_row, 
+                      run_start, across_col, across_row);
+          n_pairs = addPair(pairs, n_pairs, col, row, d_col, d_row, 
+                      run_end, across_col, across_row);
+        }
+        run_start = NONE;
+      }
+    }
+    return Arrays.copyOf(pairs, n_pairs);
+  }
+  
+  private int addPair(int[] pairs, int n_pairs, int col, int row, 
+                      int d_col, int d_row, int k, int across_col, 
+                      int across_row)
+  {
+    int inside = (row + k*d_row) * n_cols + col + k*d_col;
+    pairs[n_pairs++] = inside;
+    pairs[n_pairs++] = inside + across_row * n_cols + across_col;
+    return n_pairs;
+  }
+  
+  /**
+   * Gather the entrances of a cluster from the borders around it, then 
+   * measure the distance from each to each of the others.
+   */
+  private void buildNodes(int c)
+  {
+    // forget the previous entrances
+    for(int i : nodes[c])
+      slot[i] = NONE;
+    
+    // gather the new ones: insides of our own borders, outsides of those of 
+    // the clusters to the west and north
+    int c_col = c % n_cluster_cols, c_row = c / n_cluster_cols;
+    int[] west = (c_col > 0) ? east[c - 1] : new int[0],
+          north = (c_row > 0) ? south[c - n_cluster_cols] : new int[0];
+    int n_max = (east[c].length + south[c].length 
+                  + west.length + north.length) / 2, n_nodes = 0;
+    int[] cluster_nodes = new int[n_max];
+    int[][] cluster_partners = new int[n_max][];
+    for(int[] border : new int[][] { east[c], south[c], west, north })
+    {
+      boolean ours = (border == east[c] || border == south[c]);
+      for(int k = 0; k < border.length; k += 2)
+      {
+        int i = border[ours ? k : k + 1], p = border[ours ? k + 1 : k];
+        // the corner Tile of a cluster may lead out in two directions
+        if(slot[i] == NONE)
+        {
+          slot[i] = n_nodes;
+          cluster_nodes[n_nodes] = i;
+          cluster_partners[n_nodes++] = new int[] { p };
+        }
+        else
+        {
+          int[] previous = cluster_partners[slot[i]];
+          int[] both = Arrays.copyOf(previous, previous.length + 1);
+          both[previous.length] = p;
+          cluster_partners[slot[i]] = both;
+        }
+      }
+    }
+    nodes[c] = cluster_nodes = Arrays.copyOf(cluster_nodes, n_nodes);
+    partners[c] = Arrays.copyOf(cluster_partners, n_nodes);
+    
+    // measure the distances between them
+    int[] cluster_distances = new int[n_nodes * n_nodes], 
+          from = new int[n_nodes];
+    for(int j = 0; j < n_nodes; j++)
+    {
+      from = flood(c, cluster_nodes[j], from);
+      System.arraycopy(from, 0, cluster_distances, j * n_nodes, n_nodes);
+    }
+    distances[c] = cluster_distances;
+  }
+  
+  /**
+   * Breadth-first search over the floor of a cluster, ignoring Units.
+   * 
+   * @param result reused if it is long enough.
+   * @return the distance from a Tile to each of the cluster's entrances, or 
+   * NONE for those it can't reach without leaving the cluster.
+   */
+  private int[] flood(int c, int source, int[] result)
+  {
+    int[] cluster_nodes = nodes[c];
+    if(result.length < cluster_nodes.length)
+      result = new int[cluster_nodes.length];
+    Arrays.fill(result, NONE);
+    
+    int min_col = (c % n_cluster_cols) * CLUSTER_SIZE,
+        min_row = (c / n_cluster_cols) * CLUSTER_SIZE,
+        width = Math.min(n_cols - min_col, CLUSTER_SIZE),
+        height = Math.min(n_rows - min_row, CLUSTER_SIZE);
+    Arrays.fill(steps, NONE);
+    
+    int head = 0, tail = 0, 
+        l_source = (source / n_cols - min_row) * width 
+                    + source % n_cols - min_col;
+    steps[l_source] = 0;
+    queue[tail++] = l_source;
+    while(head < tail)
+    {
+      int l = queue[head++], col = l % width, row = l / width, 
+          i = (min_row + row) * n_cols + min_col + col;
+      if(slot[i] != NONE)
+        result[slot[i]] = steps[l];
+      
+      // try the 4 neighbours that are inside the cluster
+      for(int n = 0; n < 4; n++)
+      {
+        int n_col = col + ((n == 0) ? -1 : (n == 1) ? 1 : 0),
+            n_row = row + ((n == 2) ? -1 : (n == 3) ? 1 : 0);
+        if(n_col < 0 || n_col >= width || n_row < 0 || n_row >= height)
+          continue;
+        int n_l = n_row * width + n_col;
+        if(steps[n_l] == NONE 
+        && grid.isFloor(min_col + n_col, min_row + n_row))
+        {
+          steps[n_l] = steps[l] + 1;
+          queue[tail++] = n_l;
+        }
+      }
+    }
+    return result;
+  }
+}
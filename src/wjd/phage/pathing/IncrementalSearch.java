@@ -0,0 +1,373 @@
+/*
+ Copyright (C) 2013 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.phage.pathing;
+
+import java.util.Arrays;
+import java.util.Deque;
+import wjd.phage.level.Tile;
+import wjd.phage.level.TileGrid;
+
+/**
+ * A D* Lite search for a path to a goal, kept from one request to the next 
+ * by whoever is following it. The search runs backwards from the goal, so 
+ * the start can move along the path without invalidating anything, and when 
+ * Tiles are blocked or freed (by terrain or by Units) only the distances 
+ * that depended on them are repaired: asking again when nothing has changed 
+ * costs little more than reading the path back.
+ * <p>
+ * The search is confined to a window around the start and the goal, which 
+ * keeps its memory down to a few thousand Tiles; it is meant for the legs 
+ * of a HierarchicalPlanner plan rather than for crossing the whole grid, 
+ * and won't span more than MAX_SIDE Tiles either way: check that it fits 
+ * first. Changes are looked for only in the regions of the window whose 
+ * terrain or occupancy epochs have moved on since the last request.
+ *
+ * @author wdyce
+ * @since Feb 19, 2013
+ */
+public final class IncrementalSearch
+{
+  /* CONSTANTS */
+  
+  /** Free space left around the start and the goal, in Tiles. */
+  public static final int MARGIN = 8;
+  /** Widest and tallest a window can be: enough for neighbouring regions. */
+  public static final int MAX_SIDE = 2 * TileGrid.REGION_SIZE + 2 * MARGIN;
+  private static final int INFINITE = Integer.MAX_VALUE / 4;
+  private static final int REGION_SHIFT 
+    = Integer.numberOfTrailingZeros(TileGrid.REGION_SIZE);
+  
+  /* ATTRIBUTES */
+  private final TileGrid grid;
+  private final int min_col, min_row, width, height, goal;
+  // cost from each Tile of the window to the goal, and its one-step lookahead
+  private final int[] g, rhs;
+  // whether each Tile was blocked when last looked at
+  private final boolean[] blocked;
+  // the grid regions the window overlaps, and their terrain and occupancy 
+  // epochs when last looked at
+  private final int first_region_col, first_region_row, 
+                    n_region_cols, n_region_rows;
+  private final int[] terrain_epochs, occupancy_epochs;
+  private final IndexedHeap open = new IndexedHeap();
+  // start of the search, where it was when the keys were last computed, and 
+  // the sum of the heuristic between the successive starts
+  private int start, last_start, key_modifier = 0;
+  private int n_expanded = 0;
+  
+  /* CLASS NAMESPACE FUNCTIONS */
+  
+  /**
+   * @return true if the window needed to search between two Tiles isn't 
+   * more than MAX_SIDE Tiles across: if not, search the whole grid instead.
+   */
+  public static boolean fits(Tile start_tile, Tile goal_tile)
+  {
+    int n_cols = start_tile.grid.getWidth();
+    return (Math.abs(start_tile.index % n_cols - goal_tile.index % n_cols) 
+              + 2 * MARGIN < MAX_SIDE
+         && Math.abs(start_tile.index / n_cols - goal_tile.index / n_cols) 
+              + 2 * MARGIN < MAX_SIDE);
+  }
+  
+  /* METHODS */
+  
+  // constructors
+  
+  public IncrementalSearch(Tile start_tile, Tile goal_tile)
+  {
+    this.grid = start_tile.grid;
+    int start_col = start_tile.index % grid.getWidth(), 
+        start_row = start_tile.index / grid.getWidth(),
+        goal_col = goal_tile.index % grid.getWidth(), 
+        goal_row = goal_tile.index / grid.getWidth();
+    this.min_col = Math.max(0, Math.min(start_col, goal_col) - MARGIN);
+    this.min_row = Math.max(0, Math.min(start_row, goal_row) - MARGIN);
+    this.width = Math.min(grid.getWidth(), 
+                    Math.max(start_col, goal_col) + MARGIN + 1) - min_col;
+    this.height = Math.min(grid.getHeight(), 
+                    Math.max(start_row, goal_row) + MARGIN + 1) - min_row;
+    
+    int n_tiles = width * height;
+    g = new int[n_tiles];
+    rhs = new int[n_tiles];
+    blocked = new boolean[n_tiles];
+    Arrays.fill(g, INFINITE);
+    Arrays.fill(rhs, INFINITE);
+    
+    // the goal is where the search starts from
+    goal = local(goal_tile.index);
+    start = last_start = local(start_tile.index);
+    for(int l = 0; l < n_tiles; l++)
+      blocked[l] = isBlocked(l);
+    open.reset(n_tiles);
+    
+    first_region_col = min_col >> REGION_SHIFT;
+    first_region_row = min_row >> REGION_SHIFT;
+    n_region_cols = ((min_col + width - 1) >> REGION_SHIFT) 
+                    - first_region_col + 1;
+    n_region_rows = ((min_row + height - 1) >> REGION_SHIFT) 
+                    - first_region_row + 1;
+    terrain_epochs = new int[n_region_cols * n_region_rows];
+    occupancy_epochs = new int[n_region_cols * n_region_rows];
+    for(int r = 0, k = 0; r < n_region_rows; r++)
+    for(int c = 0; c < n_region_cols; c++, k++)
+    {
+      int col = (first_region_col + c) << REGION_SHIFT, 
+          row = (first_region_row + r) << REGION_SHIFT;
+      terrain_epochs[k] = grid.getTerrainEpoch(col, row);
+      occupancy_epochs[k] = grid.getOccupancyEpoch(col, row);
+    }
+    rhs[goal] = 0;
+    open.push(goal, key(goal));
+  }
+  
+  // accessors
+  
+  public Tile getGoal()
+  {
+    return grid.getTile(global(goal));
+  }
+  
+  /**
+   * @return true if a Tile is inside the window the search is confined to.
+   */
+  public boolean contains(Tile t)
+  {
+    int col = t.index % grid.getWidth() - min_col, 
+        row = t.index / grid.getWidth() - min_row;
+    return (t.grid == grid && col >= 0 && row >= 0 
+            && col < width && row < height);
+  }
+  
+  /**
+   * @return the number of Tiles expanded by the last update.
+   */
+  public int getExpanded()
+  {
+    return n_expanded;
+  }
+  
+  // mutators
+  
+  /**
+   * Move the start of the search, repair it around any Tile that has been 
+   * blocked or freed since last time, and write out the path it leads to.
+   * 
+   * @param from the new start, which must be inside the window.
+   * @return false, leaving the path empty, if the goal can't be reached 
+   * inside the window.
+   */
+  public boolean writePath(Tile from, Deque<Tile> result)
+  {
+    n_expanded = 0;
+    result.clear();
+    
+    // moving the start changes every heuristic: rather than computing all the 
+    // keys again, add the distance moved to the keys computed from now on
+    start = local(from.index);
+    key_modifier += estimate(last_start, start);
+    
+    // the start is never blocked, so the Tile it has left might be now...
+    refresh(last_start);
+    refresh(start);
+    last_start = start;
+    
+    // ... and look for Tiles that have been blocked or freed since last time,
+    // in the regions that have changed at all
+    for(int r = 0, k = 0; r < n_region_rows; r++)
+    for(int c = 0; c < n_region_cols; c++, k++)
+    {
+      int col = (first_region_col + c) << REGION_SHIFT, 
+          row = (first_region_row + r) << REGION_SHIFT,
+          terrain_epoch = grid.getTerrainEpoch(col, row),
+          occupancy_epoch = grid.getOccupancyEpoch(col, row);
+      if(terrain_epoch == terrain_epochs[k] 
+      && occupancy_epoch == occupancy_epochs[k])
+        continue;
+      terrain_epochs[k] = terrain_epoch;
+      occupancy_epochs[k] = occupancy_epoch;
+      
+      // the part of the region inside the window
+      int first_col = Math.max(col, min_col) - min_col, 
+          first_row = Math.max(row, min_row) - min_row,
+          end_col = Math.min(col + TileGrid.REGION_SIZE, min_col + width) 
+                    - min_col,
+          end_row = Math.min(row + TileGrid.REGION_SIZE, min_row + height) 
+                    - min_row;
+      for(int y = first_row; y < end_row; y++)
+      for(int x = first_col, l = y * width + x; x < end_col; x++, l++)
+        refresh(l);
+    }
+    
+    // repair the search, then follow it downhill
+    computeShortestPath();
+    if(g[start] >= INFINITE)
+      return false;
+    for(int l = start, n_steps = 0; l != goal; n_steps++)
+    {
+      int col = l % width, row = l / width, next = l, best = INFINITE;
+      if(col > 0 && !blocked[l - 1] && g[l - 1] < best)
+        best = g[next = l - 1];
+      if(col < width - 1 && !blocked[l + 1] && g[l + 1] < best)
+        best = g[next = l + 1];
+      if(row > 0 && !blocked[l - width] && g[l - width] < best)
+        best = g[next = l - width];
+      if(row < height - 1 && !blocked[l + width] && g[l + width] < best)
+        best = g[next = l + width];
+      if(next == l || n_steps == blocked.length)
+      {
+        result.clear();
+        return false;
+      }
+      result.addLast(grid.getTile(global(next)));
+      l = next;
+    }
+    return true;
+  }
+  
+  /* SUBROUTINES */
+  
+  /**
+   * Repair the search around a Tile if it has been blocked or freed.
+   */
+  private void refresh(int l)
+  {
+    boolean now_blocked = isBlocked(l);
+    if(now_blocked != blocked[l])
+    {
+      blocked[l] = now_blocked;
+      updateVertex(l);
+      updateNeighbours(l);
+    }
+  }
+  
+  private int local(int i)
+  {
+    return (i / grid.getWidth() - min_row) * width 
+            + i % grid.getWidth() - min_col;
+  }
+  
+  private int global(int l)
+  {
+    return (min_row + l / width) * grid.getWidth() + min_col + l % width;
+  }
+  
+  /**
+   * The start (where the Unit following the path is) is never blocked, and 
+   * the goal only by terrain: anything else is if it can't be moved onto.
+   */
+  private boolean isBlocked(int l)
+  {
+    if(l == start)
+      return false;
+    else if(l == goal)
+      return !grid.isFloor(min_col + l % width, min_row + l / width);
+    else
+      return !grid.isPathable(global(l));
+  }
+  
+  private int estimate(int a, int b)
+  {
+    return AHeuristic.MANHATTAN.estimate(a % width - b % width, 
+                                          a / width - b / width);
+  }
+  
+  private long key(int l)
+  {
+    int k = Math.min(g[l], rhs[l]);
+    return ((long)(k + estimate(start, l) + key_modifier) << 32) | k;
+  }
+  
+  /**
+   * Recompute a Tile's lookahead from its neighbours, and queue it if that 
+   * no longer agrees with its cost.
+   */
+  private void updateVertex(int l)
+  {
+    if(l != goal)
+    {
+      int best = INFINITE;
+      if(!blocked[l])
+      {
+        int col = l % width, row = l / width;
+        if(col > 0 && !blocked[l - 1])
+          best = Math.min(best, g[l - 1] + 1);
+        if(col < width - 1 && !blocked[l + 1])
+          best = Math.min(best, g[l + 1] + 1);
+        if(row > 0 && !blocked[l - width])
+          best = Math.min(best, g[l - width] + 1);
+        if(row < height - 1 && !blocked[l + width])
+          best = Math.min(best, g[l + width] + 1);
+      }
+      rhs[l] = Math.min(best, INFINITE);
+    }
+    
+    boolean queued = open.contains(l);
+    if(g[l] != rhs[l])
+    {
+      if(queued)
+        open.update(l, key(l));
+      else
+        open.push(l, key(l));
+    }
+    else if(queued)
+      open.remove(l);
+  }
+  
+  private void updateNeighbours(int l)
+  {
+    int col = l % width, row = l / width;
+    if(col > 0)
+      updateVertex(l - 1);
+    if(col < width - 1)
+      updateVertex(l + 1);
+    if(row > 0)
+      updateVertex(l - width);
+    if(row < height - 1)
+      updateVertex(l + width);
+  }
+  
+  private void computeShortestPath()
+  {
+    while(!open.isEmpty() 
+    && (open.peekKey() < key(start) || rhs[start] != g[start]))
+    {
+      int u = open.peek();
+      long old_key = open.peekKey(), new_key = key(u);
+      n_expanded++;
+      
+      // the start has moved since u was queued: requeue it where it belongs
+      if(old_key < new_key)
+        open.update(u, new_key);
+      // u has got cheaper: settle it, and pass it on
+      else if(g[u] > rhs[u])
+      {
+        g[u] = rhs[u];
+        open.remove(u);
+        updateNeighbours(u);
+      }
+      // u has got dearer: forget it, and whatever went through it
+      else
+      {
+        g[u] = INFINITE;
+        updateVertex(u);
+        updateNeighbours(u);
+      }
+    }
+  }
+}
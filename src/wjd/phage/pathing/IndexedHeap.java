@@ -0,0 +1,198 @@
+/*
+ Copyright (C) 2013 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.phage.pathing;
+
+import java.util.Arrays;
+
+/**
+ * A binary min-heap of node indices that also knows where each node is in 
+ * the heap, so that a node's key can be lowered in place (decrease-key) 
+ * rather than removed and added again. Keys are kept in heap order next to 
+ * the nodes, and where each node is kept in pages of PAGE_SIZE nodes 
+ * allocated the first time one of them is pushed, so that the heap only 
+ * takes up room for the part of the index range it is actually used over.
+ *
+ * @author wdyce
+ * @since Feb 19, 2013
+ */
+final class IndexedHeap
+{
+  /* CONSTANTS */
+  static final int PAGE_SHIFT = 8;
+  static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+  static final int PAGE_MASK = PAGE_SIZE - 1;
+  
+  /* ATTRIBUTES */
+  // the nodes and their keys, in heap order
+  private int[] heap = new int[64];
+  private long[] key = new long[64];
+  // slot of each node in the heap, only valid while it's there
+  private int[][] slot = new int[0][];
+  private int size = 0;
+  
+  /* METHODS */
+  
+  // accessors
+  
+  boolean isEmpty()
+  {
+    return (size == 0);
+  }
+  
+  int size()
+  {
+    return size;
+  }
+  
+  boolean contains(int node)
+  {
+    int[] page = slot[node >> PAGE_SHIFT];
+    if(page == null)
+      return false;
+    int s = page[node & PAGE_MASK];
+    return (s < size && heap[s] == node);
+  }
+  
+  /**
+   * @return the smallest key, that of the node pop would return.
+   */
+  long peekKey()
+  {
+    return key[0];
+  }
+  
+  int peek()
+  {
+    return heap[0];
+  }
+  
+  // mutators
+  
+  /**
+   * Empty the heap, making sure there's room for nodes 0 to n_nodes - 1.
+   */
+  void reset(int n_nodes)
+  {
+    int n_pages = (n_nodes + PAGE_MASK) >> PAGE_SHIFT;
+    if(slot.length < n_pages)
+      slot = Arrays.copyOf(slot, n_pages);
+    size = 0;
+  }
+  
+  void push(int node, long node_key)
+  {
+    if(size == heap.length)
+    {
+      heap = Arrays.copyOf(heap, size * 2);
+      key = Arrays.copyOf(key, size * 2);
+    }
+    if(slot[node >> PAGE_SHIFT] == null)
+      slot[node >> PAGE_SHIFT] = new int[PAGE_SIZE];
+    siftUp(node, node_key, size++);
+  }
+  
+  /**
+   * Lower the key of a node that is already in the heap.
+   */
+  void decreaseKey(int node, long node_key)
+  {
+    siftUp(node, node_key, slotOf(node));
+  }
+  
+  /**
+   * Raise or lower the key of a node that is already in the heap.
+   */
+  void update(int node, long node_key)
+  {
+    int s = slotOf(node);
+    if(node_key < key[s])
+      siftUp(node, node_key, s);
+    else
+      siftDown(node, node_key, s);
+  }
+  
+  /**
+   * Take a node out of the heap, wherever it is.
+   */
+  void remove(int node)
+  {
+    int s = slotOf(node), last = heap[--size];
+    if(s == size)
+      return;
+    // put the last node in its place, then move it up or down
+    long last_key = key[size];
+    if(s > 0 && last_key < key[(s - 1) >>> 1])
+      siftUp(last, last_key, s);
+    else
+      siftDown(last, last_key, s);
+  }
+  
+  /**
+   * @return the node with the smallest key, which is removed from the heap.
+   */
+  int pop()
+  {
+    int top = heap[0];
+    int last = heap[--size];
+    if(size > 0)
+      siftDown(last, key[size], 0);
+    return top;
+  }
+  
+  /* SUBROUTINES */
+  
+  private int slotOf(int node)
+  {
+    return slot[node >> PAGE_SHIFT][node & PAGE_MASK];
+  }
+  
+  private void siftUp(int node, long node_key, int s)
+  {
+    while(s > 0)
+    {
+      int parent = (s - 1) >>> 1;
+      if(key[parent] <= node_key)
+        break;
+      place(heap[parent], key[parent], s);
+      s = parent;
+    }
+    place(node, node_key, s);
+  }
+  
+  private void siftDown(int node, long node_key, int s)
+  {
+    int half = size >>> 1;
+    while(s < half)
+    {
+      int child = 2*s + 1, right = child + 1;
+      if(right < size && key[right] < key[child])
+        child = right;
+      if(node_key <= key[child])
+        break;
+      place(heap[child], key[child], s);
+      s = child;
+    }
+    place(node, node_key, s);
+  }
+  
+  private void place(int node, long node_key, int s)
+  {
+    heap[s] = node;
+    key[s] = node_key;
+    slot[node >> PAGE_SHIFT][node & PAGE_MASK] = s;
+  }
+}
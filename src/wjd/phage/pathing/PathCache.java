@@ -0,0 +1,280 @@
+/*
+ Copyright (C) 2013 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.phage.pathing;
+
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import wjd.phage.level.Tile;
+import wjd.phage.level.TileGrid;
+
+/**
+ * The paths most recently found on a grid, by source and destination, so 
+ * that Units asking for the same path again, or for the rest of a path 
+ * another has already taken, don't search for it again. 
+ * <p>
+ * Paths are stamped with the terrain epoch of the grid when they were found, 
+ * and are forgotten as soon as the terrain changes. They are searched for 
+ * avoiding Units, which will have moved on since, so a path is only reused 
+ * if its first step is free: a Unit that is blocked searches again.
+ *
+ * @author wdyce
+ * @since Feb 19, 2013
+ */
+public final class PathCache
+{
+  /* CONSTANTS */
+  public static final int DEFAULT_CAPACITY = 512;    // paths
+  
+  /* NESTING */
+  
+  private static final class Entry
+  {
+    final int source, destination;
+    // Tiles to go through, from the first step to the destination
+    final int[] path;
+    
+    Entry(int source_, int destination_, int[] path_)
+    {
+      this.source = source_;
+      this.destination = destination_;
+      this.path = path_;
+    }
+  }
+  
+  /* CLASS ATTRIBUTES */
+  
+  // one cache per grid, forgotten along with the grid
+  private static final Map<TileGrid, PathCache> caches
+    = new WeakHashMap<TileGrid, PathCache>();
+  
+  /* CLASS NAMESPACE FUNCTIONS */
+  
+  public static synchronized PathCache get(TileGrid grid)
+  {
+    PathCache cache = caches.get(grid);
+    if(cache == null)
+    {
+      cache = new PathCache(grid, DEFAULT_CAPACITY);
+      caches.put(grid, cache);
+    }
+    return cache;
+  }
+  
+  private static long key(int source, int destination)
+  {
+    return ((long)source << 32) | destination;
+  }
+  
+  /* ATTRIBUTES */
+  private final TileGrid grid;
+  private final int capacity;
+  // least recently used first
+  private final LinkedHashMap<Long, Entry> entries;
+  // the same entries by destination, to look for paths going through a Tile
+  private final Map<Integer, List<Entry>> by_destination 
+    = new HashMap<Integer, List<Entry>>();
+  // terrain epoch of the grid when the paths were found
+  private int epoch;
+  private long n_hits = 0, n_suffix_hits = 0, n_misses = 0;
+  
+  /* METHODS */
+  
+  // constructors
+  
+  private PathCache(TileGrid grid_, int capacity_)
+  {
+    this.grid = grid_;
+    this.capacity = capacity_;
+    this.entries = new LinkedHashMap<Long, Entry>(capacity_, 0.75f, true);
+    this.epoch = grid.getTerrainEpoch();
+  }
+  
+  // accessors
+  
+  /**
+   * @return the number of paths found in the cache, from their source.
+   */
+  public synchronized long getHits()
+  {
+    return n_hits;
+  }
+  
+  /**
+   * @return the number of paths found in the cache as the end of a longer 
+   * path to the same destination.
+   */
+  public synchronized long getSuffixHits()
+  {
+    return n_suffix_hits;
+  }
+  
+  /**
+   * @return the number of paths that had to be searched for.
+   */
+  public synchronized long getMisses()
+  {
+    return n_misses;
+  }
+  
+  public synchronized int getSize()
+  {
+    return entries.size();
+  }
+  
+  // mutators
+  
+  /**
+   * Write out a path to a destination from the cache, or search for it if 
+   * it isn't there and remember it if the destination can be reached.
+   * 
+   * @return true if the destination can be reached, false if the path only 
+   * leads as close to it as possible.
+   */
+  public synchronized boolean writePath(Tile from, Tile to, 
+                                        Deque<Tile> result)
+  {
+    if(readPath(from, to, result))
+      return true;
+    PathSearch search = new PathSearch(from, to);
+    search.writePath(result);
+    remember(from, to, search);
+    return search.hasResult();
+  }
+  
+  /**
+   * Write out a path to a destination if the cache has it, leaving the 
+   * result untouched otherwise.
+   * 
+   * @return false if the path needs searching for.
+   */
+  public synchronized boolean readPath(Tile from, Tile to, 
+                                       Deque<Tile> result)
+  {
+    validate();
+    
+    // the path itself...
+    Entry entry = entries.get(key(from.index, to.index));
+    if(entry != null && isFree(entry.path, 0))
+    {
+      n_hits++;
+      write(entry.path, 0, result);
+      return true;
+    }
+    
+    // ... or the end of a longer path that goes through here
+    List<Entry> to_destination = by_destination.get(to.index);
+    if(to_destination != null) for(Entry longer : to_destination)
+    {
+      int[] path = longer.path;
+      for(int k = 0; k < path.length - 1; k++)
+        if(path[k] == from.index && isFree(path, k + 1))
+        {
+          n_suffix_hits++;
+          entries.get(key(longer.source, longer.destination));
+          write(path, k + 1, result);
+          return true;
+        }
+    }
+    
+    // fine, it'll have to be searched for
+    n_misses++;
+    return false;
+  }
+  
+  /**
+   * Remember the result of a search made since the terrain last changed, if 
+   * it reached its destination.
+   */
+  public synchronized void remember(Tile from, Tile to, PathSearch search)
+  {
+    validate();
+    if(search.hasResult() && search.getLength() > 0)
+      put(new Entry(from.index, to.index, search.getPath()));
+  }
+  
+  /**
+   * Forget every path and reset the counters.
+   */
+  public synchronized void clear()
+  {
+    clear(grid.getTerrainEpoch());
+    n_hits = n_suffix_hits = n_misses = 0;
+  }
+  
+  /* SUBROUTINES */
+  
+  /**
+   * Forget everything once the terrain changes.
+   */
+  private void validate()
+  {
+    int grid_epoch = grid.getTerrainEpoch();
+    if(grid_epoch != epoch)
+      clear(grid_epoch);
+  }
+  
+  private boolean isFree(int[] path, int first)
+  {
+    return (first == path.length - 1 || grid.isPathable(path[first]));
+  }
+  
+  private void write(int[] path, int first, Deque<Tile> result)
+  {
+    result.clear();
+    for(int k = first; k < path.length; k++)
+      result.addLast(grid.getTile(path[k]));
+  }
+  
+  private void put(Entry entry)
+  {
+    Entry previous = entries.put(key(entry.source, entry.destination), entry);
+    if(previous != null)
+      by_destination.get(previous.destination).remove(previous);
+    List<Entry> to_destination = by_destination.get(entry.destination);
+    if(to_destination == null)
+    {
+      to_destination = new ArrayList<Entry>();
+      by_destination.put(entry.destination, to_destination);
+    }
+    to_destination.add(entry);
+    
+    // make room by forgetting the least recently used
+    if(entries.size() > capacity)
+    {
+      Iterator<Entry> i = entries.values().iterator();
+      Entry eldest = i.next();
+      i.remove();
+      to_destination = by_destination.get(eldest.destination);
+      to_destination.remove(eldest);
+      if(to_destination.isEmpty())
+        by_destination.remove(eldest.destination);
+    }
+  }
+  
+  private void clear(int grid_epoch)
+  {
+    entries.clear();
+    by_destination.clear();
+    epoch = grid_epoch;
+  }
+}
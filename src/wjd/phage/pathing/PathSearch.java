@@ -17,15 +17,32 @@
 package wjd.phage.pathing;
 
 import java.util.Deque;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.PriorityQueue;
-import java.util.Queue;
 import wjd.phage.level.Tile;
 import wjd.phage.level.TileGrid;
 
 /**
+ * A* search between two Tiles, over Tile indices rather than objects: the 
+ * state of the search lives in pages of primitive arrays reused by every 
+ * search on the same thread, and the open set is an IndexedHeap, so that a 
+ * search allocates nothing beyond the path it returns, once the pages for 
+ * the part of the grid it covers are there.
+ * <p>
+ * Either a classic A*, which expands Tiles one at a time, or a Jump Point
+ * Search, which only expands the Tiles where an optimal path might turn and
+ * jumps in a straight line across everything in between, which is much 
+ * faster across open floor. Both return optimal paths, though not always the 
+ * same ones, Tile by Tile.
+ * <p>
+ * If the destination can't be reached, the path leads to the Tile closest
+ * to it instead (for Jump Point Search, the closest of the Tiles expanded).
+ * <p>
+ * Searches normally go around Units on the grid itself, and so must run on 
+ * the thread that updates it. A Unit standing on the destination doesn't 
+ * count, as waypoints are doorways where Units stop all the time: like an
+ * IncrementalSearch, the search leads up to it rather than flooding the grid 
+ * looking for a way round. Given a TerrainSnapshot instead searches only 
+ * consider the terrain as it was when the snapshot was taken, and may run 
+ * on any thread.
  *
  * @author wdyce
  * @since 16 Feb, 2012
@@ -34,15 +51,35 @@ public class PathSearch
 {
   /* NESTING */
   
+  public static enum EStrategy
+  {
+    A_STAR,
+    JUMP_POINT
+  }
+  
+  /* CLASS ATTRIBUTES */
+  
+  // each thread searches in its own working space
+  private static final ThreadLocal<SearchSpace> spaces 
+    = new ThreadLocal<SearchSpace>()
+  {
+    @Override
+    protected SearchSpace initialValue()
+    {
+      return new SearchSpace();
+    }
+  };
+  
   /* ATTRIBUTES */
   private final TileGrid grid;
-  private final SearchState start;
-  private final SearchState end;
+  // null to search the grid itself
+  private final TerrainSnapshot terrain;
+  private final int start, end, n_cols, n_rows;
   private final AHeuristic heuristic = AHeuristic.EUCLIEAN;
-  private Map<Tile, SearchState> states;
-  private Queue<SearchState> open;
   private boolean hasResult = false;
-  private SearchState fallback_plan;
+  private int n_expanded = 0;
+  // Tiles to go through, from the first step to the last
+  private final int[] path;
   
 
   /* METHODS */
@@ -50,110 +87,270 @@ public class PathSearch
   // constructors
   
   public PathSearch(Tile start_tile, Tile end_tile)
+  {
+    this(start_tile, end_tile, EStrategy.A_STAR);
+  }
+  
+  public PathSearch(Tile start_tile, Tile end_tile, EStrategy strategy)
+  {
+    this(start_tile, end_tile, strategy, null);
+  }
+  
+  public PathSearch(Tile start_tile, Tile end_tile, EStrategy strategy, 
+                    TerrainSnapshot terrain)
   {
     // initialise final attributes
     this.grid = start_tile.grid;
-    
-    this.start = new SearchState(start_tile, this);
-    this.end = new SearchState(end_tile, this);
-
-    fallback_plan = start;
-    start.totalCostEstimate = estimateCost(start_tile);
-    
-    // wrap graph vertices in exploration state objects
-    states = new HashMap<Tile, SearchState>();
-    states.put(start_tile, start);
-    states.put(end_tile, end);
-
-    // add the start state to the open set
-    open = new PriorityQueue<SearchState>();
-    open.add(start);
+    this.terrain = terrain;
+    this.start = start_tile.index;
+    this.end = end_tile.index;
+    this.n_cols = grid.getWidth();
+    this.n_rows = grid.getHeight();
     
     // perform the search
-    hasResult = search();
+    SearchSpace space = spaces.get();
+    space.begin(n_cols * n_rows);
+    int last = (strategy == EStrategy.JUMP_POINT) 
+                ? searchJumpPoints(space) : search(space);
+    path = tracePath(space, last);
   }
   
   // accessors
   
-  final int estimateCost(Tile tile)
+  final int estimateCost(int i)
+  {
+    return heuristic.estimate(i % n_cols - end % n_cols, 
+                              i / n_cols - end / n_cols);
+  }
+  
+  /**
+   * @return true if the destination can be reached, false if the path only
+   * leads as close to it as possible.
+   */
+  public boolean hasResult()
+  {
+    return hasResult;
+  }
+  
+  /**
+   * @return the number of Tiles expanded by the search.
+   */
+  public int getExpanded()
+  {
+    return n_expanded;
+  }
+  
+  /**
+   * @return the number of steps in the path.
+   */
+  public int getLength()
   {
-    return heuristic.estimate(tile.grid_position, end.tile.grid_position);
+    return path.length;
+  }
+  
+  int[] getPath()
+  {
+    return path;
   }
   
   public void writePath(Deque<Tile> result)
   {
     result.clear();
-
-    // start at the end, trace backwards adding vertices
-    SearchState current = hasResult ? end : fallback_plan;
-    while (current != start)
-    {
-      // add element to front, in order for list to be in the right order
-      result.addFirst(current.tile);
-      current = current.previous;
-    }
+    for(int i : path)
+      result.addLast(grid.getTile(i));
   }
   
   /* SUBROUTINES */
 
-  private boolean search()
+  /**
+   * @return the destination if it can be reached, the closest Tile to it 
+   * that can otherwise.
+   */
+  private int search(SearchSpace space)
   {
-    while (!open.isEmpty())
+    // keep the best closed state, just in case the target is inaccessible
+    int fallback_plan = start, fallback_estimate = estimateCost(start);
+    
+    // add the start state to the open set
+    space.open(start, start, 0, fallback_estimate);
+    while(!space.open.isEmpty())
     {
       // expand from the open state that is currently cheapest
-      SearchState x = open.poll();
+      int x = space.open.pop();
 
       // have we reached the end?
-      if (x.equals(end))
-        return true;
+      if(x == end)
+      {
+        hasResult = true;
+        return end;
+      }
 
       // try to expand each neighbour
-      for (Tile t : grid.getNeighbours(x.tile, false))
-        if(t.isPathable())
-          expand(x, t);
+      n_expanded++;
+      int next_cost = space.cost(x) + 1;
+      for(int offset : grid.getNeighbourOffsets(x, false))
+      {
+        int t = x + offset;
+        
+        // closed states are no longer under consideration, and states 
+        // already open link back to x only if it's better
+        if(space.isClosed(t) 
+        || (space.isOpen(t) && space.cost(t) <= next_cost)
+        || !isPathable(t))
+          continue;
+        space.open(t, x, next_cost, estimateCost(t));
+      }
 
       // remember to close x now that all connections have been expanded
-      x.closed = true;
-      
-      // keep the best closed state, just in case the target is inaccessible
-      if(estimateCost(x.tile) < estimateCost(fallback_plan.tile))
+      space.close(x);
+      int estimate = estimateCost(x);
+      if(estimate < fallback_estimate)
+      {
         fallback_plan = x;
+        fallback_estimate = estimate;
+      }
     }
     
     // fail!
-    return false;
+    return fallback_plan;
   }
-
-  private void expand(SearchState src_state, Tile t)
+  
+  /**
+   * @return the destination if it can be reached, the closest jump point to 
+   * it that can otherwise.
+   */
+  private int searchJumpPoints(SearchSpace space)
   {
-    SearchState dest_state = states.get(t);
-    
-    // create states as needed
-    if(dest_state == null)
+    int fallback_plan = start, fallback_estimate = estimateCost(start);
+    space.open(start, start, 0, fallback_estimate);
+    while(!space.open.isEmpty())
     {
-      dest_state = new SearchState(t, this);
-      states.put(t, dest_state);
+      int x = space.open.pop();
+      if(x == end)
+      {
+        hasResult = true;
+        return end;
+      }
+      
+      // carry on in the direction we came from, or turn off it, but never 
+      // turn back: the start has no direction, so try all 4
+      n_expanded++;
+      int col = x % n_cols, row = x / n_cols, 
+          p = space.parent(x), d_col = Integer.signum(col - p % n_cols), 
+          d_row = Integer.signum(row - p / n_cols);
+      if(d_col != 0 || x == start)
+      {
+        tryJump(space, x, col, row, 0, -1);
+        tryJump(space, x, col, row, 0, 1);
+      }
+      if(d_row != 0 || x == start)
+      {
+        tryJump(space, x, col, row, -1, 0);
+        tryJump(space, x, col, row, 1, 0);
+      }
+      if(x != start)
+        tryJump(space, x, col, row, d_col, d_row);
+      
+      space.close(x);
+      int estimate = estimateCost(x);
+      if(estimate < fallback_estimate)
+      {
+        fallback_plan = x;
+        fallback_estimate = estimate;
+      }
     }
-
-    // closed states are no longer under consideration
-    else if (dest_state.closed)
+    return fallback_plan;
+  }
+  
+  private void tryJump(SearchSpace space, int x, int col, int row, 
+                       int d_col, int d_row)
+  {
+    int j = jump(col, row, d_col, d_row);
+    if(j < 0 || space.isClosed(j))
       return;
-
-    // states not yet opened always link back to x
-    if(!dest_state.opened)
+    int j_cost = space.cost(x) + Math.abs(j % n_cols - col) 
+                                + Math.abs(j / n_cols - row);
+    if(!space.isOpen(j) || j_cost < space.cost(j))
+      space.open(j, x, j_cost, estimateCost(j));
+  }
+  
+  /**
+   * Move in a straight line until reaching a Tile where an optimal path 
+   * might have to turn.
+   * 
+   * @return that Tile, or -1 if there is none before an obstacle.
+   */
+  private int jump(int col, int row, int d_col, int d_row)
+  {
+    while(true)
+    {
+      col += d_col;
+      row += d_row;
+      if(!isPathable(col, row))
+        return -1;
+      int i = row * n_cols + col;
+      if(i == end)
+        return i;
+      
+      if(d_col != 0)
+      {
+        // a way up or down has just opened up past an obstacle
+        if((isPathable(col, row - 1) && !isPathable(col - d_col, row - 1))
+        || (isPathable(col, row + 1) && !isPathable(col - d_col, row + 1)))
+          return i;
+      }
+      else
+      {
+        // a way left or right has just opened up past an obstacle...
+        if((isPathable(col - 1, row) && !isPathable(col - 1, row - d_row))
+        || (isPathable(col + 1, row) && !isPathable(col + 1, row - d_row)))
+          return i;
+        
+        // ... or there's something to turn towards further along the row
+        if(jump(col, row, -1, 0) >= 0 || jump(col, row, 1, 0) >= 0)
+          return i;
+      }
+    }
+  }
+  
+  private boolean isPathable(int i)
+  {
+    if(terrain != null)
+      return terrain.isFloor(i);
+    return (i == end) ? grid.isFloor(i % n_cols, i / n_cols) 
+                      : grid.isPathable(i);
+  }
+  
+  private boolean isPathable(int col, int row)
+  {
+    if(terrain != null)
+      return terrain.isFloor(col, row);
+    return (col == end % n_cols && row == end / n_cols) 
+            ? grid.isFloor(col, row) : grid.isPathable(col, row);
+  }
+  
+  private int[] tracePath(SearchSpace space, int last)
+  {
+    // count the steps back to the start: jumps go in straight lines, the 
+    // length of which is the difference in columns plus that in rows
+    int length = 0;
+    for(int i = last; i != start; i = space.parent(i))
     {
-      // set cost before adding to heap, or order will be wrong!
-      dest_state.setParent(src_state);
-      dest_state.opened = true;
-      open.add(dest_state);
+      int p = space.parent(i);
+      length += Math.abs(i % n_cols - p % n_cols) 
+                + Math.abs(i / n_cols - p / n_cols);
     }
-    // states already open link back to x only if it's better
-    else if (src_state.currentCost < dest_state.currentCost)
+    
+    // then fill them in from the end, a Tile at a time
+    int[] result = new int[length];
+    for(int i = last; i != start; i = space.parent(i))
     {
-      // remove, reset cost and replace, or order will be wrong!
-      open.remove(dest_state);
-      dest_state.setParent(src_state);
-      open.add(dest_state);
+      int p = space.parent(i), 
+          step = (i % n_cols != p % n_cols) 
+                  ? Integer.signum(i - p) : Integer.signum(i - p) * n_cols;
+      for(int t = i; t != p; t -= step)
+        result[--length] = t;
     }
+    return result;
   }
 }
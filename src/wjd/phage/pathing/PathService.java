@@ -0,0 +1,215 @@
+/*
+ Copyright (C) 2013 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.phage.pathing;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import wjd.phage.level.Tile;
+import wjd.phage.level.TileGrid;
+
+/**
+ * Runs path searches on a pool of worker threads, so that asking for a path 
+ * doesn't hold up the thread that updates the grid. The workers search a 
+ * TerrainSnapshot rather than the grid itself, so their paths only avoid 
+ * terrain, and a request is stale as soon as the terrain changes: its result 
+ * should then be thrown away and asked for again.
+ * <p>
+ * To keep games reproducible, a result is only handed over DELIVERY_DELAY ms 
+ * after it was asked for on the grid's TickScheduler clock, however soon the
+ * search actually finishes, and the tick thread waits for it then if it
+ * hasn't. How many workers there are, and how busy the machine is, only 
+ * change how long that wait is, never which tick a path arrives on. With no
+ * worker threads, requests are searched for as soon as they are made and 
+ * held just the same.
+ *
+ * @author wdyce
+ * @since Feb 19, 2013
+ */
+public final class PathService
+{
+  /* CONSTANTS */
+  
+  /** Worker thread count, overridden by -Dphage.path_threads=N. */
+  public static final int DEFAULT_THREADS = Integer.getInteger(
+    "phage.path_threads", 
+    Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+  
+  /** How long after being asked for a path is handed over, in ms. */
+  public static final int DELIVERY_DELAY = 48;
+  
+  /* NESTING */
+  
+  /**
+   * A search that is running or waiting to run: poll it from the thread 
+   * that updates the grid.
+   */
+  public static final class Request
+  {
+    public final Tile source, destination;
+    private final TileGrid grid;
+    private final int epoch, due;
+    private final Future<PathSearch> result;
+    
+    private Request(Tile source_, Tile destination_, 
+                    final TerrainSnapshot terrain, ExecutorService pool)
+    {
+      this.source = source_;
+      this.destination = destination_;
+      this.grid = source_.grid;
+      this.epoch = terrain.getEpoch();
+      this.due = grid.getScheduler().now() + DELIVERY_DELAY;
+      
+      Callable<PathSearch> search = new Callable<PathSearch>()
+      {
+        @Override
+        public PathSearch call()
+        {
+          return new PathSearch(source, destination, 
+                                PathSearch.EStrategy.JUMP_POINT, terrain);
+        }
+      };
+      if(pool != null)
+        result = pool.submit(search);
+      else
+      {
+        FutureTask<PathSearch> task = new FutureTask<PathSearch>(search);
+        task.run();
+        result = task;
+      }
+    }
+    
+    /**
+     * @return true once the result is due, whether or not the search has 
+     * finished yet: getResult waits for it if need be.
+     */
+    public boolean isDone()
+    {
+      return (grid.getScheduler().now() - due >= 0);
+    }
+    
+    /**
+     * @return true if the terrain has changed since the search was asked for.
+     */
+    public boolean isStale()
+    {
+      return (epoch != grid.getTerrainEpoch());
+    }
+    
+    /**
+     * @return the finished search, waiting for it if need be.
+     */
+    public PathSearch getResult()
+    {
+      try
+      {
+        return result.get();
+      }
+      catch(InterruptedException ex)
+      {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("interrupted waiting for a path", ex);
+      }
+      catch(ExecutionException ex)
+      {
+        throw new IllegalStateException("path search failed", ex.getCause());
+      }
+    }
+    
+    /**
+     * Don't bother searching if the search hasn't started yet.
+     */
+    public void cancel()
+    {
+      result.cancel(false);
+    }
+  }
+  
+  /* CLASS ATTRIBUTES */
+  
+  // one service per grid, forgotten along with the grid
+  private static final Map<TileGrid, PathService> services
+    = new WeakHashMap<TileGrid, PathService>();
+  
+  // the workers are shared by every grid
+  private static ExecutorService pool = null;
+  
+  /* CLASS NAMESPACE FUNCTIONS */
+  
+  public static synchronized PathService get(TileGrid grid)
+  {
+    PathService service = services.get(grid);
+    if(service == null)
+    {
+      service = new PathService(grid);
+      services.put(grid, service);
+    }
+    return service;
+  }
+  
+  private static synchronized ExecutorService getPool()
+  {
+    if(pool == null && DEFAULT_THREADS > 0)
+      pool = Executors.newFixedThreadPool(DEFAULT_THREADS, new ThreadFactory()
+      {
+        private int n_threads = 0;
+        
+        @Override
+        public Thread newThread(Runnable r)
+        {
+          // workers mustn't keep the game running once it's closed
+          Thread worker = new Thread(r, "path-search-" + (n_threads++));
+          worker.setDaemon(true);
+          return worker;
+        }
+      });
+    return pool;
+  }
+  
+  /* ATTRIBUTES */
+  private final TileGrid grid;
+  private TerrainSnapshot snapshot = null;
+  
+  /* METHODS */
+  
+  // constructors
+  
+  private PathService(TileGrid grid_)
+  {
+    this.grid = grid_;
+  }
+  
+  // mutators
+  
+  /**
+   * Ask for a path, from the thread that updates the grid: the terrain is 
+   * only snapshotted again if it has changed since the last request, and 
+   * then only the regions that have changed are copied.
+   */
+  public Request request(Tile source, Tile destination)
+  {
+    if(snapshot == null || snapshot.getEpoch() != grid.getTerrainEpoch())
+      snapshot = new TerrainSnapshot(grid, snapshot);
+    return new Request(source, destination, snapshot, getPool());
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ Copyright (C) 2013 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.phage.pathing;
+
+import java.util.Arrays;
+
+/**
+ * The working memory of a path search, indexed by Tile: reused from one 
+ * search to the next so that searching allocates nothing. Rather than being 
+ * cleared, the arrays are stamped with the generation of the search that 
+ * last wrote to them, so anything stamped with an older one counts as unseen.
+ * <p>
+ * The arrays are split into pages of IndexedHeap.PAGE_SIZE Tiles, allocated 
+ * the first time a search opens one of their Tiles, so that a thread only 
+ * holds on to memory for the parts of the grid its searches have been over
+ * rather than for the whole grid.
+ *
+ * @author wdyce
+ * @since Feb 19, 2013
+ */
+final class SearchSpace
+{
+  /* CONSTANTS */
+  static final byte OPEN = 1, CLOSED = 2;
+  private static final int SHIFT = IndexedHeap.PAGE_SHIFT, 
+                           MASK = IndexedHeap.PAGE_MASK;
+  
+  /* ATTRIBUTES */
+  // cost of the best path found so far to each Tile, and where it came from,
+  // by page
+  private int[][] cost = new int[0][], parent = new int[0][];
+  // whether each Tile is OPEN or CLOSED, only valid if its stamp is current
+  private byte[][] state = new byte[0][];
+  private int[][] stamp = new int[0][];
+  private int generation = 0;
+  final IndexedHeap open = new IndexedHeap();
+  
+  /* METHODS */
+  
+  // accessors
+  
+  boolean isOpen(int i)
+  {
+    int[] page = stamp[i >> SHIFT];
+    return (page != null && page[i & MASK] == generation 
+            && state[i >> SHIFT][i & MASK] == OPEN);
+  }
+  
+  boolean isClosed(int i)
+  {
+    int[] page = stamp[i >> SHIFT];
+    return (page != null && page[i & MASK] == generation 
+            && state[i >> SHIFT][i & MASK] == CLOSED);
+  }
+  
+  /**
+   * @return the cost of the best path found so far to a Tile that has been 
+   * opened by this search.
+   */
+  int cost(int i)
+  {
+    return cost[i >> SHIFT][i & MASK];
+  }
+  
+  /**
+   * @return where the best path found so far to a Tile that has been opened
+   * by this search comes from.
+   */
+  int parent(int i)
+  {
+    return parent[i >> SHIFT][i & MASK];
+  }
+  
+  // mutators
+  
+  /**
+   * Forget the previous search and make room for one over n_tiles Tiles.
+   */
+  void begin(int n_tiles)
+  {
+    int n_pages = (n_tiles + MASK) >> SHIFT;
+    if(stamp.length < n_pages)
+    {
+      cost = Arrays.copyOf(cost, n_pages);
+      parent = Arrays.copyOf(parent, n_pages);
+      state = Arrays.copyOf(state, n_pages);
+      stamp = Arrays.copyOf(stamp, n_pages);
+    }
+    
+    // the stamps only need clearing once every 4 billion searches or so
+    if(++generation == 0)
+    {
+      for(int[] page : stamp)
+        if(page != null)
+          Arrays.fill(page, 0);
+      generation = 1;
+    }
+    open.reset(n_tiles);
+  }
+  
+  /**
+   * Open a Tile, or reopen it with a better cost if it's already open.
+   * 
+   * @param estimate the heuristic estimate of the cost to the destination.
+   */
+  void open(int i, int from, int i_cost, int estimate)
+  {
+    long key = ((long)(i_cost + estimate) << 32) | estimate;
+    int p = i >> SHIFT, l = i & MASK;
+    if(stamp[p] == null)
+    {
+      cost[p] = new int[IndexedHeap.PAGE_SIZE];
+      parent[p] = new int[IndexedHeap.PAGE_SIZE];
+      state[p] = new byte[IndexedHeap.PAGE_SIZE];
+      stamp[p] = new int[IndexedHeap.PAGE_SIZE];
+    }
+    cost[p][l] = i_cost;
+    parent[p][l] = from;
+    if(stamp[p][l] == generation && state[p][l] == OPEN)
+      open.decreaseKey(i, key);
+    else
+    {
+      stamp[p][l] = generation;
+      state[p][l] = OPEN;
+      open.push(i, key);
+    }
+  }
+  
+  void close(int i)
+  {
+    state[i >> SHIFT][i & MASK] = CLOSED;
+  }
+}
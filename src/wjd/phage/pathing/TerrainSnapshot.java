@@ -0,0 +1,115 @@
+/*
+ Copyright (C) 2013 William James Dyce
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package wjd.phage.pathing;
+
+import wjd.phage.level.TileGrid;
+
+/**
+ * Which Tiles of a grid were floor at a given terrain epoch. Snapshots never 
+ * change once taken, so they can be searched on any thread while the grid 
+ * itself goes on being updated.
+ * <p>
+ * The Tiles are kept by region of TileGrid.REGION_SIZE x REGION_SIZE Tiles, 
+ * and a snapshot taken after another one only copies the regions whose 
+ * terrain has changed since, sharing the others with it.
+ *
+ * @author wdyce
+ * @since Feb 19, 2013
+ */
+public final class TerrainSnapshot
+{
+  /* CONSTANTS */
+  private static final int SIZE = TileGrid.REGION_SIZE,
+                           SHIFT = Integer.numberOfTrailingZeros(SIZE),
+                           MASK = SIZE - 1;
+  
+  /* ATTRIBUTES */
+  private final int epoch, n_cols, n_rows, n_region_cols;
+  // whether each Tile of each region was floor, never written to once the 
+  // snapshot is taken
+  private final boolean[][] regions;
+  
+  /* METHODS */
+  
+  // constructors
+  
+  /**
+   * Take a snapshot of the grid's terrain, from the thread that updates it.
+   */
+  public TerrainSnapshot(TileGrid grid)
+  {
+    this(grid, null);
+  }
+  
+  /**
+   * Take a snapshot of the grid's terrain, from the thread that updates it, 
+   * copying only the regions that have changed since a previous snapshot of
+   * the same grid, or all of them if there is none.
+   */
+  public TerrainSnapshot(TileGrid grid, TerrainSnapshot previous)
+  {
+    this.epoch = grid.getTerrainEpoch();
+    this.n_cols = grid.getWidth();
+    this.n_rows = grid.getHeight();
+    this.n_region_cols = (n_cols + MASK) >> SHIFT;
+    int n_region_rows = (n_rows + MASK) >> SHIFT;
+    this.regions = new boolean[n_region_cols * n_region_rows][];
+    
+    boolean sharing = (previous != null && previous.n_cols == n_cols 
+                        && previous.n_rows == n_rows);
+    for(int r = 0, k = 0; r < n_region_rows; r++)
+    for(int c = 0; c < n_region_cols; c++, k++)
+    {
+      int first_col = c << SHIFT, first_row = r << SHIFT;
+      if(sharing 
+      && previous.epoch - grid.getTerrainEpoch(first_col, first_row) >= 0)
+        regions[k] = previous.regions[k];
+      else
+      {
+        boolean[] region = regions[k] = new boolean[SIZE * SIZE];
+        for(int l = 0; l < SIZE * SIZE; l++)
+          region[l] = grid.isFloor(first_col + (l & MASK), 
+                                   first_row + (l >> SHIFT));
+      }
+    }
+  }
+  
+  // accessors
+  
+  /**
+   * @return the terrain epoch of the grid when the snapshot was taken.
+   */
+  public int getEpoch()
+  {
+    return epoch;
+  }
+  
+  public boolean isFloor(int i)
+  {
+    return isFloor(i % n_cols, i / n_cols);
+  }
+  
+  /**
+   * @return true if the Tile was on the grid and was floor.
+   */
+  public boolean isFloor(int col, int row)
+  {
+    return (col >= 0 && row >= 0 && col < n_cols && row < n_rows 
+            && regions[(row >> SHIFT) * n_region_cols + (col >> SHIFT)]
+                      [((row & MASK) << SHIFT) | (col & MASK)]);
+  }
+}
@@ -16,6 +16,7 @@
  */
 package wjd.phage.play;
 
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import wjd.amb.control.EUpdateResult;
@@ -28,6 +29,8 @@ import wjd.phage.level.LevelController;
 import wjd.phage.level.LevelScene;
 import wjd.phage.level.Tile;
 import wjd.phage.level.TileGrid;
+import wjd.phage.level.TileRegion;
+import wjd.phage.pathing.FlowField;
 import wjd.phage.unit.MoveOrder;
 import wjd.phage.unit.Unit;
 import wjd.util.Timer;
@@ -39,10 +42,14 @@ import wjd.util.Timer;
  */
 public class PlayController extends LevelController
 {
+  /* CONSTANTS */
+  public static final int FOG_PERIOD = 1500;   // ms
+  
   /* ATTRIBUTES */
   private Rect selection_box = new Rect();
+  private TileRegion selection = new TileRegion();
   private List<Unit> selected_units = new LinkedList<Unit>();
-  private Timer fog_timer = new Timer(1500);
+  private Timer fog_timer = new Timer(FOG_PERIOD);
   
   /* METHODS */
 
@@ -111,13 +118,15 @@ public class PlayController extends LevelController
   @Override
   public EUpdateResult update(int t_delta)
   {
+    // pick up any level that has finished loading
+    super.update(t_delta);
+    
     // refresh fog-of-war periodically
     if(fog_timer.update(t_delta) == EUpdateResult.FINISHED)
       this.level.fog.recalculate();
         
-    // update each Tile
-    for(Tile t : level.tilegrid)
-      t.update(t_delta);
+    // update the grid's units and concentrations
+    level.tilegrid.update(t_delta);
     
     // always continue
     return EUpdateResult.CONTINUE;
@@ -127,11 +136,38 @@ public class PlayController extends LevelController
   
   private void rightMouse(boolean pressed, V2 position)
   {
-    if(pressed) for(Unit u : selected_units)
+    if(!pressed)
+      return;
+    
+    // units deleted or replaced since they were selected can't be ordered
+    for(Iterator<Unit> i = selected_units.iterator(); i.hasNext(); )
     {
-      Tile tile = level.tilegrid.pixelToTile(level.getCamera().getGlobal(position));
-      if(tile != null)
-        u.setOrder(new MoveOrder(u, tile));
+      Unit u = i.next();
+      if(!level.tilegrid.contains(u))
+      {
+        u.selected = false;
+        i.remove();
+      }
+    }
+    if(selected_units.isEmpty())
+      return;
+    Tile tile = level.tilegrid.pixelToTile(level.getCamera().getGlobal(position));
+    if(tile == null)
+      return;
+    
+    // a lone unit searches for itself...
+    if(selected_units.size() == 1)
+    {
+      Unit u = selected_units.get(0);
+      u.setOrder(new MoveOrder(u, tile));
+    }
+    // ... but a group shares a single field leading to the destination
+    else
+    {
+      FlowField field = FlowField.acquire(tile);
+      for(Unit u : selected_units)
+        u.setOrder(new MoveOrder(u, field));
+      field.release();
     }
   }
   
@@ -154,13 +190,20 @@ public class PlayController extends LevelController
       // drag-selection?
       if(selection_box.w != 0 && selection_box.h != 0)
       {
-        TileGrid selection = level.tilegrid.createSubGrid(global_selection);
-        if(selection != null) for(Tile t : selection)
-          select(t);
+        TileGrid grid = level.tilegrid;
+        if(grid.getRegion(global_selection, selection) != null)
+          for(int row = selection.min_row; row <= selection.max_row; row++)
+          for(int col = selection.min_col, i = row*grid.getWidth() + col; 
+              col <= selection.max_col; col++, i++)
+            select(grid.getUnit(i));
       }
       // click-unclick?
       else
-        select(level.tilegrid.pixelToTile(global_selection.pos()));
+      {
+        Tile t = level.tilegrid.pixelToTile(global_selection.pos());
+        if(t != null)
+          select(t.getUnit());
+      }
     }
     
     // close selection box
@@ -174,12 +217,8 @@ public class PlayController extends LevelController
     selected_units.clear();
   }
   
-  private void select(Tile t)
+  private void select(Unit u)
   {
-    if(t == null)
-      return;
-      
-    Unit u = t.getUnit();
     if (u != null)
     {
       u.selected = true;
@@ -34,4 +34,13 @@ public abstract class AUnitOrder implements IVisible, IDynamic
   {
     this.owner = owner;
   }
+  
+  /**
+   * Called when the owner is given another order, so that this one can let
+   * go of whatever it was holding on to.
+   */
+  public void cancel()
+  {
+    // override me
+  }
 }
@@ -22,18 +22,18 @@ import wjd.amb.view.Colour;
 import wjd.amb.view.ICanvas;
 import wjd.phage.level.Concentration;
 import wjd.phage.level.Tile;
-import wjd.util.Timer;
+import wjd.phage.level.TickScheduler;
 
 /**
  *
  * @author wdyce
  * @since Jan 14, 2013
  */
-public class InfectedCell extends Unit
+public class InfectedCell extends Unit implements TickScheduler.ITask
 {
-  /* ATTRIBUTES */
+  /* CONSTANTS */
   
-  private Timer spawn_virus = new Timer(1500); // 2 times in 3 seconds
+  private static final int SPAWN_PERIOD = 1500; // 2 times in 3 seconds
   
   /* METHODS */
   
@@ -42,6 +42,7 @@ public class InfectedCell extends Unit
   public InfectedCell(Tile tile)
   {
     super(tile);
+    tile.grid.getScheduler().schedule(this, SPAWN_PERIOD);
   }
   
   /* OERRIDES -- IDYNAMIC */
@@ -49,13 +50,23 @@ public class InfectedCell extends Unit
   @Override
   public EUpdateResult update(int t_delta)
   {
-    // generate infection periodically
-    if(spawn_virus.update(t_delta) == EUpdateResult.FINISHED)
-      tile.getConcentration(Concentration.EType.VIRUS).fill();
-    
     return EUpdateResult.CONTINUE;
   }
   
+  /* IMPLEMENTS -- TICKSCHEDULER.ITASK */
+  
+  @Override
+  public int run(TickScheduler scheduler)
+  {
+    // stop once this cell has been removed from its Tile
+    if(tile.getUnit() != this)
+      return TickScheduler.STOP;
+    
+    // generate infection periodically
+    tile.getConcentration(Concentration.EType.VIRUS).fill();
+    return SPAWN_PERIOD;
+  }
+  
   /* OVERRIDES -- IVISIBLE */
   
   @Override
@@ -76,8 +76,9 @@ public class Macrophage extends Unit
       return order.update(t_delta);
     
     // clear up infection if not moving
-    else for(Tile t : tile.grid.getNeighbours(tile, true))
-      t.getConcentration(Concentration.EType.VIRUS)
+    else for(int offset : tile.grid.getNeighbourOffsets(tile.index, true))
+      tile.grid.getTile(tile.index + offset)
+        .getConcentration(Concentration.EType.VIRUS)
         .tryWithdraw(t_delta * VIRUS_EAT_SPEED);
     
     // All clear
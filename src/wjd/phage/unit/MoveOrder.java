@@ -22,16 +22,21 @@ import wjd.amb.control.EUpdateResult;
 import wjd.amb.view.Colour;
 import wjd.amb.view.ICanvas;
 import wjd.math.V2;
+import wjd.phage.level.TickScheduler;
 import wjd.phage.level.Tile;
+import wjd.phage.pathing.FlowField;
+import wjd.phage.pathing.HierarchicalPlanner;
+import wjd.phage.pathing.IncrementalSearch;
+import wjd.phage.pathing.PathCache;
 import wjd.phage.pathing.PathSearch;
-import wjd.util.Timer;
+import wjd.phage.pathing.PathService;
 
 /**
  *
  * @author wdyce
  * @since Dec 2, 2012
  */
-public class MoveOrder extends AUnitOrder
+public class MoveOrder extends AUnitOrder implements TickScheduler.ITask
 {
   /* CONSTANTS */
   private static final int BLOCKED_TIMEOUT = 1000;    // ms
@@ -39,17 +44,46 @@ public class MoveOrder extends AUnitOrder
   private static final int ORDER_TIMEOUT = 15000;  // ms
   
   /* ATTRIBUTES */
+  // the leg of the plan being followed
   private Deque<Tile> path = new LinkedList<Tile>();
-  private Timer blocked_repath = new Timer(BLOCKED_TIMEOUT);
-  private Timer blocked_cancel = new Timer(ORDER_TIMEOUT);
-  private Timer repath_timer = new Timer(REPATH_INTERVAL);
+  private HierarchicalPlanner.Plan plan;
+  // the next leg, if it is being searched for
+  private PathService.Request pending = null;
+  // the leg being followed, once it has been repathed
+  private IncrementalSearch leg = null;
+  // shared with the rest of the group the order was given to, if any
+  private final FlowField field;
+  private final TickScheduler scheduler;
+  // when the owner started waiting, and last repathed while waiting, or -1 
+  // if it isn't waiting
+  private int blocked_since = -1, blocked_repath_since;
+  private boolean repath_due = false;
+  // has the order been finished, cancelled or replaced?
+  private boolean over = false;
   private Tile destination;
 
   /* METHODS */
   public MoveOrder(Unit owner, Tile destination)
+  {
+    this(owner, destination, null);
+  }
+  
+  /**
+   * An order to follow a field shared with other Units, holding a reference 
+   * to it until the order is over.
+   */
+  public MoveOrder(Unit owner, FlowField field)
+  {
+    this(owner, field.getDestination(), field.retain());
+  }
+  
+  private MoveOrder(Unit owner, Tile destination, FlowField field)
   {
     super(owner);
     this.destination = destination;
+    this.field = field;
+    this.scheduler = owner.tile.grid.getScheduler();
+    scheduler.schedule(this, REPATH_INTERVAL);
     recalculatePath();
   }
 
@@ -75,25 +109,39 @@ public class MoveOrder extends AUnitOrder
   @Override
   public EUpdateResult update(int t_delta)
   {
-    // 0. repath periodically in case a better path has freed itself
-    if(repath_timer.update(t_delta) == EUpdateResult.FINISHED)
+    // 0. pick up the next leg once it has been found...
+    if(pending != null && pending.isDone())
+      receiveLeg();
+    
+    // ... and repath periodically in case a better path has freed itself
+    if(repath_due)
+    {
+      repath_due = false;
       return recalculatePath();
+    }
     
     // 1. get a new tile from the path if there is one
     if(owner.next_tile == null)
     {
+      // refine the next leg of the plan once this one is done
+      if(path.isEmpty() && plan != null && pending == null)
+        requestLeg(owner.tile);
       if(!path.isEmpty())
         owner.next_tile = path.pop(); 
+      // stay put until it has been found
+      else if(pending != null)
+        return EUpdateResult.CONTINUE;
       else
       {
         // have we arrived at our destination?
         if(owner.tile == destination)
         {
           owner.order = null;
+          finish();
           return EUpdateResult.FINISHED;
         }
         // if not wait a few seconds and then try again
-        return wait(t_delta);
+        return waitBlocked();
       }
     }
     
@@ -102,7 +150,7 @@ public class MoveOrder extends AUnitOrder
     {
       // move into a new tile...
       if(!owner.next_tile.unitStartEnter(owner))
-        return wait(t_delta);
+        return waitBlocked();
 
       // ... and out of the current one
       owner.tile.setUnit(null);
@@ -122,8 +170,7 @@ public class MoveOrder extends AUnitOrder
       owner.tile = owner.next_tile;
       owner.next_tile = null;
       // reset the "boredom" timers
-      blocked_repath.empty();
-      blocked_cancel.empty();
+      blocked_since = -1;
       // tell the Tile to move the owner to another Tile
       return EUpdateResult.MOVE_ME;
     }
@@ -132,37 +179,187 @@ public class MoveOrder extends AUnitOrder
     return EUpdateResult.CONTINUE;
   }
   
+  /* IMPLEMENTS -- TICKSCHEDULER.ITASK */
+  
+  @Override
+  public int run(TickScheduler scheduler)
+  {
+    // stop if the order has been replaced without being cancelled, or the 
+    // owner has been deleted or replaced itself
+    if(owner.order != this || !owner.tile.grid.contains(owner))
+    {
+      finish();
+      return TickScheduler.STOP;
+    }
+    
+    // the path is recalculated at the owner's next update
+    repath_due = true;
+    return REPATH_INTERVAL;
+  }
+  
+  /* OVERRIDES -- AUNITORDER */
+  
+  @Override
+  public void cancel()
+  {
+    finish();
+  }
+  
   /* SUBROUTINES */
   
-  private EUpdateResult wait(int t_delta)
+  /**
+   * Let go of the field and any search still pending, and stop repathing:
+   * safe to call more than once.
+   */
+  private void finish()
+  {
+    if(over)
+      return;
+    over = true;
+    scheduler.cancel(this);
+    if(field != null)
+      field.release();
+    if(pending != null)
+    {
+      pending.cancel();
+      pending = null;
+    }
+  }
+  
+  private EUpdateResult waitBlocked()
   {
+    int now = scheduler.now();
+    if(blocked_since < 0)
+      blocked_since = blocked_repath_since = now;
+    
     // cancel order after a long wait
-    if(blocked_cancel.update(t_delta) == EUpdateResult.FINISHED)
+    if(now - blocked_since >= ORDER_TIMEOUT)
     {
       owner.order = null;
+      finish();
       return EUpdateResult.CANCEL;
     }
     // recalculate path after a short wait
-    else if(blocked_repath.update(t_delta) == EUpdateResult.FINISHED)
+    else if(now - blocked_repath_since >= BLOCKED_TIMEOUT)
+    {
+      blocked_repath_since = now;
       return recalculatePath();
+    }
     else
       return EUpdateResult.BLOCKED;
   }
   
   private EUpdateResult recalculatePath()
   {
+    // give up on a next Tile not yet entered, though it stays at the head of 
+    // the old path, in case we follow that a while longer
     if(owner.next_tile != null && owner.progress.isEmpty())
     {
+      path.push(owner.next_tile);
       owner.next_tile = null;
-      return EUpdateResult.CANCEL;
     }
     
     Tile source = (owner.next_tile != null) ? owner.next_tile : owner.tile;
-    new PathSearch(source, destination).writePath(path);
+    // follow the group's field, unless stuck behind other Units on it
+    if(field != null && blocked_since < 0 && field.writePath(source, path))
+      plan = null;
+    // keep to the plan for as long as the terrain doesn't change...
+    else if(plan != null && !plan.isStale())
+      repairLeg(source);
+    // ... and only plan again once it has
+    else
+    {
+      plan = HierarchicalPlanner.get(source.grid).plan(source, destination);
+      requestLeg(source);
+    }
     // reset the "boredom" timers
-    blocked_repath.empty();
-    blocked_cancel.empty();
+    blocked_since = -1;
     
     return EUpdateResult.CONTINUE;
   }
+  
+  /**
+   * Find the next leg of the plan in the PathCache, or search for it: 
+   * straight away and around other Units if we're stuck behind them, on the 
+   * PathService otherwise, following the old path in the meantime.
+   */
+  private void requestLeg(Tile source)
+  {
+    if(pending != null)
+    {
+      pending.cancel();
+      pending = null;
+    }
+    
+    leg = null;
+    Tile waypoint = plan.getNextWaypoint(source);
+    if(waypoint == null)
+      path.clear();
+    else if(!PathCache.get(source.grid).readPath(source, waypoint, path))
+    {
+      if(blocked_since >= 0)
+      {
+        PathSearch search = new PathSearch(source, waypoint);
+        search.writePath(path);
+        PathCache.get(source.grid).remember(source, waypoint, search);
+      }
+      else
+        pending = PathService.get(source.grid).request(source, waypoint);
+    }
+  }
+  
+  /**
+   * Repath the current leg incrementally, starting the search over only if 
+   * this is the first time or we've strayed out of its window, and searching
+   * the whole grid instead if the leg is too long for a window.
+   */
+  private void repairLeg(Tile source)
+  {
+    Tile waypoint = plan.getNextWaypoint(source);
+    if(waypoint == null)
+    {
+      path.clear();
+      return;
+    }
+    if(!IncrementalSearch.fits(source, waypoint))
+    {
+      requestLeg(source);
+      return;
+    }
+    if(leg == null || leg.getGoal() != waypoint || !leg.contains(source))
+      leg = new IncrementalSearch(source, waypoint);
+    if(pending != null)
+    {
+      pending.cancel();
+      pending = null;
+    }
+    
+    // can't get there without leaving the window: search the whole grid
+    if(!leg.writePath(source, path))
+      requestLeg(source);
+  }
+  
+  private void receiveLeg()
+  {
+    PathService.Request request = pending;
+    pending = null;
+    
+    // the terrain has changed since it was asked for: plan again
+    if(request.isStale())
+    {
+      recalculatePath();
+      return;
+    }
+    PathSearch search = request.getResult();
+    PathCache.get(request.source.grid)
+      .remember(request.source, request.destination, search);
+    
+    // join the new leg wherever we are along it, or ask again if we've 
+    // wandered off it following the old one
+    Tile source = (owner.next_tile != null) ? owner.next_tile : owner.tile;
+    search.writePath(path);
+    if(source != request.source)
+      while(!path.isEmpty() && path.pop() != source)
+        continue;
+  }
 }
@@ -100,6 +100,7 @@ public abstract class Unit implements IVisible, IDynamic, Serializable
   V2 position;
   BoundedValue progress = new BoundedValue(1.0f);
   public boolean selected = false;
+  public int grid_id = 0; // slot in the grid's unit table, 0 if not placed
   AUnitOrder order = null;
   
   /* METHODS */
@@ -146,6 +147,8 @@ public abstract class Unit implements IVisible, IDynamic, Serializable
   
   public void setOrder(AUnitOrder new_order)
   {
+    if(order != null && order != new_order)
+      order.cancel();
     order = new_order;
     if(progress.isEmpty())
       next_tile = null;